@@ -1,8 +1,14 @@
 import ch.unitelabs.mdns.sd.MDNSRegistry;
+import ch.unitelabs.mdns.sd.Service;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.util.Collections;
+
 public class MulticastAnnouncer {
     final static Logger logger = LoggerFactory.getLogger(MulticastAnnouncer.class);
 
@@ -11,13 +17,15 @@ public class MulticastAnnouncer {
     public static void main(String[] args) {
         String networkInterfaceName = null;
         String serviceName = null;
+        int port = 8080;
 
         try {
-            serviceName = args[0];
+            serviceName = "_" + args[0] + "._tcp.";
             logger.debug("Service name: " + serviceName);
         } catch (Exception e) {
             logger.error(e.getMessage());
-            logger.error("Usage: java MulticastSniffer [service name] [interface name/optional]");
+            logger.error("Usage: java MulticastAnnouncer [service name] [interface name/optional] [port/optional]");
+            return;
         }
 
         try {
@@ -26,12 +34,43 @@ public class MulticastAnnouncer {
         }  // end try
         catch (Exception e) {
             logger.debug(e.getMessage());
-            logger.debug("Usage: java MulticastSniffer [service name] [interface name/optional]");
+            logger.debug("Usage: java MulticastAnnouncer [service name] [interface name/optional] [port/optional]");
+        }
+
+        if (args.length > 2) {
+            port = Integer.parseInt(args[2]);
         }
 
         // Service type
         MDNSRegistry mdnsRegistry;
+        try {
+            if (networkInterfaceName == null) {
+                mdnsRegistry = new MDNSRegistry();
+            } else {
+                NetworkInterface networkInterface = NetworkInterface.getByName(networkInterfaceName);
+                if (networkInterface == null) {
+                    logger.error("Network interface {} doesn't exist on this machine", networkInterfaceName);
+                    return;
+                }
+                String hostName = InetAddress.getLocalHost().getHostName().split("\\.")[0];
+                mdnsRegistry = new MDNSRegistry(hostName, Collections.list(networkInterface.getInetAddresses()));
+            }
+            mdnsRegistry.register(mdnsRegistry.getHostName().getLabel(0), Service.fromName(serviceName), port,
+                    Collections.<String, String>emptyMap());
+        } catch (IOException e) {
+            logger.error("Could not start the registry: {}", e.getMessage());
+            return;
+        }
+        mdnsRegistry.start();
 
+        while (true) {
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        mdnsRegistry.stop();
         System.out.println("Bye!");
     }
 }
@@ -24,26 +24,65 @@ import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 
 public class ARecord extends Record {
-    private InetAddress address;
+    private final int address;
 
-    public ARecord(ByteBuffer buffer, String name, Class recordClass, long ttl) throws UnknownHostException {
+    public ARecord(ByteBuffer buffer, DnsName name, Class recordClass, long ttl) {
         super(name, recordClass, ttl);
-        byte[] addressBytes = new byte[4];
-        buffer.get(addressBytes);
-        address = InetAddress.getByAddress(addressBytes);
+        address = buffer.getInt();
     }
 
+    /**
+     * @param address IPv4 address in network byte order, packed into an int
+     */
+    public ARecord(DnsName name, long ttl, boolean cacheFlush, int address) {
+        super(name, Class.IN, ttl, cacheFlush);
+        this.address = address;
+    }
+
+    @Override
+    public int getType() {
+        return Type.A.asUnsignedShort();
+    }
+
+    @Override
+    protected void writeRData(ByteBuffer buffer, NameCompressor compressor) {
+        buffer.putInt(address);
+    }
+
+    /**
+     * Get the address, materialised as an InetAddress on each call.
+     *
+     * @return the IPv4 address
+     */
     public InetAddress getAddress() {
+        return toInetAddress(address);
+    }
+
+    /**
+     * @return the IPv4 address in network byte order, packed into an int
+     */
+    public int getAddressBits() {
         return address;
     }
 
+    public static InetAddress toInetAddress(int address) {
+        byte[] addressBytes = {
+                (byte) (address >>> 24), (byte) (address >>> 16), (byte) (address >>> 8), (byte) address
+        };
+        try {
+            return InetAddress.getByAddress(addressBytes);
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e); // only thrown for an illegal address length
+        }
+    }
+
     @Override
     public String toString() {
         return "ARecord{" +
                 "name='" + name + '\'' +
                 ", recordClass=" + recordClass +
                 ", ttl=" + ttl +
-                ", address=" + address +
+                ", address=" + getAddress() +
                 '}';
     }
 }
@@ -24,17 +24,70 @@ import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 
 public class AaaaRecord extends Record {
-    private InetAddress address;
+    private final long high;
+    private final long low;
 
-    public AaaaRecord(ByteBuffer buffer, String name, Class recordClass, long ttl) throws UnknownHostException {
+    public AaaaRecord(ByteBuffer buffer, DnsName name, Class recordClass, long ttl) {
         super(name, recordClass, ttl);
-        byte[] addressBytes = new byte[16];
-        buffer.get(addressBytes);
-        address = InetAddress.getByAddress(addressBytes);
+        high = buffer.getLong();
+        low = buffer.getLong();
+    }
+
+    /**
+     * @param high first 64 bits of the IPv6 address, in network byte order
+     * @param low  last 64 bits of the IPv6 address, in network byte order
+     */
+    public AaaaRecord(DnsName name, long ttl, boolean cacheFlush, long high, long low) {
+        super(name, Class.IN, ttl, cacheFlush);
+        this.high = high;
+        this.low = low;
+    }
+
+    @Override
+    public int getType() {
+        return Type.AAAA.asUnsignedShort();
+    }
+
+    @Override
+    protected void writeRData(ByteBuffer buffer, NameCompressor compressor) {
+        buffer.putLong(high);
+        buffer.putLong(low);
     }
 
+    /**
+     * Get the address, materialised as an InetAddress on each call.
+     *
+     * @return the IPv6 address
+     */
     public InetAddress getAddress() {
-        return address;
+        return toInetAddress(high, low);
+    }
+
+    /**
+     * @return the first 64 bits of the IPv6 address, in network byte order
+     */
+    public long getHighBits() {
+        return high;
+    }
+
+    /**
+     * @return the last 64 bits of the IPv6 address, in network byte order
+     */
+    public long getLowBits() {
+        return low;
+    }
+
+    public static InetAddress toInetAddress(long high, long low) {
+        byte[] addressBytes = new byte[16];
+        for (int i = 0; i < 8; i++) {
+            addressBytes[i] = (byte) (high >>> (56 - 8 * i));
+            addressBytes[8 + i] = (byte) (low >>> (56 - 8 * i));
+        }
+        try {
+            return InetAddress.getByAddress(addressBytes);
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e); // only thrown for an illegal address length
+        }
     }
 
     @Override
@@ -43,7 +96,7 @@ public class AaaaRecord extends Record {
                 "name='" + name + '\'' +
                 ", recordClass=" + recordClass +
                 ", ttl=" + ttl +
-                ", address=" + address +
+                ", address=" + getAddress() +
                 '}';
     }
 }
@@ -0,0 +1,103 @@
+package ch.unitelabs.mdns.dns;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, lock-free pool of {@link Message#MAX_LENGTH} byte buffers for encoding and receiving packets.
+ * <p>
+ * Borrowing takes a buffer out of a slot and returning puts it back into an empty one, so a buffer is only ever
+ * held by one thread. When every slot is empty a fresh buffer is allocated (a miss), and a buffer returned to a
+ * full pool is left to the garbage collector, so the pool never grows past its capacity.
+ */
+public final class BufferPool {
+    /** Heap buffers, for encoding queries and for {@link java.net.DatagramPacket}s. */
+    public static final BufferPool HEAP = new BufferPool(32, false);
+    /** Direct buffers, for receiving on NIO channels without an extra copy. */
+    public static final BufferPool DIRECT = new BufferPool(8, true);
+
+    private final AtomicReferenceArray<ByteBuffer> slots;
+    private final int mask;
+    private final boolean direct;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong discards = new AtomicLong();
+
+    /**
+     * @param capacity number of buffers kept, rounded up to a power of two
+     * @param direct   whether to hold direct rather than heap buffers
+     */
+    public BufferPool(int capacity, boolean direct) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        slots = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+        this.direct = direct;
+    }
+
+    /**
+     * Borrow a cleared buffer of {@link Message#MAX_LENGTH} bytes, to give back with {@link #release(ByteBuffer)}.
+     *
+     * @return the buffer
+     */
+    public ByteBuffer acquire() {
+        int start = start();
+        for (int i = 0; i <= mask; i++) {
+            ByteBuffer buffer = slots.getAndSet((start + i) & mask, null);
+            if (buffer != null) {
+                hits.incrementAndGet();
+                buffer.clear();
+                return buffer;
+            }
+        }
+        misses.incrementAndGet();
+        return direct ? ByteBuffer.allocateDirect(Message.MAX_LENGTH) : ByteBuffer.allocate(Message.MAX_LENGTH);
+    }
+
+    /**
+     * Give a borrowed buffer back. The caller must not use it afterwards.
+     *
+     * @param buffer buffer from {@link #acquire()}, may be null
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.isDirect() != direct || buffer.capacity() != Message.MAX_LENGTH) {
+            return;
+        }
+        int start = start();
+        for (int i = 0; i <= mask; i++) {
+            if (slots.compareAndSet((start + i) & mask, null, buffer)) {
+                return;
+            }
+        }
+        discards.incrementAndGet();
+    }
+
+    /**
+     * Threads start scanning at different slots so they rarely contend for the same one.
+     */
+    private int start() {
+        return (int) Thread.currentThread().getId() & mask;
+    }
+
+    /**
+     * @return number of borrows served from the pool
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of borrows that had to allocate a new buffer
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return number of returned buffers dropped because the pool was full
+     */
+    public long getDiscards() {
+        return discards.get();
+    }
+}
@@ -0,0 +1,291 @@
+package ch.unitelabs.mdns.dns;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable, case-insensitive DNS name.
+ * <p>
+ * The name is held in uncompressed wire format: length-prefixed labels followed by the zero-length root label.
+ * Equality and hashing fold ASCII letters to lower case as DNS requires, and the hash is computed once at
+ * construction, so names can be compared and used as map keys without rebuilding strings.
+ */
+public final class DnsName {
+    public static final DnsName ROOT = new DnsName(new byte[]{0});
+
+    public final static int MAX_LABEL_LENGTH = 63;
+    public final static int MAX_NAME_LENGTH = 255;
+
+    private final byte[] wire;
+    private final int hash;
+    private String text;
+
+    /**
+     * Parse a dotted name such as "_http._tcp.local." (the trailing dot is optional).
+     *
+     * @param name dotted name, "" or "." for the root
+     * @return the parsed name
+     */
+    public static DnsName of(String name) {
+        if (name.isEmpty() || name.equals(".")) {
+            return ROOT;
+        }
+        int end = name.endsWith(".") ? name.length() - 1 : name.length();
+        byte[] bytes = name.substring(0, end).getBytes(StandardCharsets.UTF_8);
+        byte[] wire = new byte[bytes.length + 2];
+        int labelStart = 0;
+        for (int i = 0; i <= bytes.length; i++) {
+            if (i == bytes.length || bytes[i] == '.') {
+                int length = i - labelStart;
+                if (length == 0 || length > MAX_LABEL_LENGTH) {
+                    throw new IllegalArgumentException("Invalid label in name '" + name + "'");
+                }
+                wire[labelStart] = (byte) length;
+                System.arraycopy(bytes, labelStart, wire, labelStart + 1, length);
+                labelStart = i + 1;
+            }
+        }
+        if (wire.length > MAX_NAME_LENGTH) {
+            throw new IllegalArgumentException("Name '" + name + "' is longer than " + MAX_NAME_LENGTH + " bytes");
+        }
+        return new DnsName(wire);
+    }
+
+    private DnsName(byte[] wire) {
+        this.wire = wire;
+        this.hash = hash(wire, 0);
+    }
+
+    /**
+     * Build the name made of the label at the given absolute offset of the buffer followed by this name.
+     */
+    DnsName prepend(ByteBuffer buffer, int offset, int length) {
+        byte[] name = new byte[1 + length + wire.length];
+        name[0] = (byte) length;
+        for (int i = 0; i < length; i++) {
+            name[1 + i] = buffer.get(offset + i);
+        }
+        System.arraycopy(wire, 0, name, 1 + length, wire.length);
+        return new DnsName(name);
+    }
+
+    /**
+     * Build the name made of the given label followed by this name.
+     *
+     * @param label label to add in front, e.g. an instance name
+     * @return the longer name
+     */
+    public DnsName prepend(String label) {
+        byte[] bytes = label.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length == 0 || bytes.length > MAX_LABEL_LENGTH || bytes.length + 1 + wire.length > MAX_NAME_LENGTH) {
+            throw new IllegalArgumentException("Invalid label '" + label + "'");
+        }
+        return prepend(ByteBuffer.wrap(bytes), 0, bytes.length);
+    }
+
+    /**
+     * Build the name made of this name's labels followed by the labels of suffix.
+     *
+     * @param suffix name to append, e.g. a domain
+     * @return the longer name
+     */
+    public DnsName append(DnsName suffix) {
+        if (suffix.isRoot()) {
+            return this;
+        }
+        if (isRoot()) {
+            return suffix;
+        }
+        if (wire.length - 1 + suffix.wire.length > MAX_NAME_LENGTH) {
+            throw new IllegalArgumentException("Name " + this + suffix + " is too long");
+        }
+        byte[] name = new byte[wire.length - 1 + suffix.wire.length];
+        System.arraycopy(wire, 0, name, 0, wire.length - 1);
+        System.arraycopy(suffix.wire, 0, name, wire.length - 1, suffix.wire.length);
+        return new DnsName(name);
+    }
+
+    public boolean isRoot() {
+        return wire.length == 1;
+    }
+
+    public int getLabelCount() {
+        int count = 0;
+        for (int i = 0; wire[i] != 0; i += wire[i] + 1) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Not pooled, unlike {@link #getLabels()}: single labels are mostly asked for the leftmost one, an instance or
+     * host name that is unique to one device.
+     *
+     * @param index label index, 0 being the leftmost label
+     * @return the label, decoded as UTF-8
+     */
+    public String getLabel(int index) {
+        int offset = labelOffset(index);
+        if (offset < 0 || wire[offset] == 0) {
+            throw new IndexOutOfBoundsException("Name " + this + " has no label " + index);
+        }
+        return new String(wire, offset + 1, wire[offset], StandardCharsets.UTF_8);
+    }
+
+    public List<String> getLabels() {
+        List<String> labels = new ArrayList<>();
+        for (int i = 0; wire[i] != 0; i += wire[i] + 1) {
+            labels.add(InternPool.LABELS.intern(ByteBuffer.wrap(wire), i + 1, wire[i]));
+        }
+        return Collections.unmodifiableList(labels);
+    }
+
+    /**
+     * @param count number of leading labels to drop
+     * @return the name made of the remaining labels, or the root if none remain
+     */
+    public DnsName suffix(int count) {
+        int offset = labelOffset(count);
+        if (offset == 0) {
+            return this;
+        }
+        if (offset < 0 || wire[offset] == 0) {
+            return ROOT;
+        }
+        byte[] name = new byte[wire.length - offset];
+        System.arraycopy(wire, offset, name, 0, name.length);
+        return new DnsName(name);
+    }
+
+    /**
+     * @param count number of leading labels to keep
+     * @return the name made of those labels, or this name if it has no more than count labels
+     */
+    public DnsName prefix(int count) {
+        int offset = labelOffset(count);
+        if (offset < 0 || wire[offset] == 0) {
+            return this;
+        }
+        byte[] name = new byte[offset + 1];
+        System.arraycopy(wire, 0, name, 0, offset);
+        return new DnsName(name);
+    }
+
+    /**
+     * Test whether this name equals suffix or is a subdomain of it, ignoring case.
+     *
+     * @param suffix candidate parent name
+     * @return true if the last labels of this name are the labels of suffix
+     */
+    public boolean endsWith(DnsName suffix) {
+        int start = wire.length - suffix.wire.length;
+        if (start < 0) {
+            return false;
+        }
+        int offset = 0;
+        while (offset < start) {
+            offset += wire[offset] + 1;
+        }
+        return offset == start && regionMatches(wire, start, suffix.wire, 0, suffix.wire.length);
+    }
+
+    /**
+     * @param parent candidate parent name
+     * @return true if this name is a proper subdomain of parent
+     */
+    public boolean isSubdomainOf(DnsName parent) {
+        return wire.length > parent.wire.length && endsWith(parent);
+    }
+
+    /**
+     * @return size of the uncompressed wire encoding, including the root label
+     */
+    public int getWireLength() {
+        return wire.length;
+    }
+
+    /**
+     * Write the uncompressed wire encoding of this name.
+     *
+     * @param buffer buffer to write to
+     */
+    public void writeTo(ByteBuffer buffer) {
+        buffer.put(wire);
+    }
+
+    byte[] wire() {
+        return wire;
+    }
+
+    private int labelOffset(int index) {
+        int offset = 0;
+        for (int i = 0; i < index; i++) {
+            if (wire[offset] == 0) {
+                return -1;
+            }
+            offset += wire[offset] + 1;
+        }
+        return offset;
+    }
+
+    static int hash(byte[] wire, int from) {
+        int h = 1;
+        for (int i = from; i < wire.length; i++) {
+            h = 31 * h + toLower(wire[i]);
+        }
+        return h;
+    }
+
+    static boolean regionMatches(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            if (toLower(a[aOffset + i]) != toLower(b[bOffset + i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static int toLower(byte b) {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+
+        DnsName other = (DnsName) o;
+
+        return hash == other.hash && wire.length == other.wire.length
+                && regionMatches(wire, 0, other.wire, 0, wire.length);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    /**
+     * @return the dotted form, with a trailing dot after every label ("" for the root)
+     */
+    @Override
+    public String toString() {
+        String s = text;
+        if (s == null) {
+            StringBuilder sb = new StringBuilder(wire.length);
+            for (int i = 0; wire[i] != 0; i += wire[i] + 1) {
+                sb.append(new String(wire, i + 1, wire[i], StandardCharsets.UTF_8)).append('.');
+            }
+            s = sb.toString();
+            text = s;
+        }
+        return s;
+    }
+}
@@ -19,39 +19,44 @@
 
 package ch.unitelabs.mdns.dns;
 
-import java.util.Arrays;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class Domain {
-    private final String name;
-    private final List<String> labels;
+    private final DnsName name;
 
-    public static final Domain LOCAL = new Domain("local.");
+    public static final Domain LOCAL = new Domain(DnsName.of("local."));
 
-    private static final Pattern DOMAIN_PATTERN = Pattern.compile("((.*)_(tcp|udp)\\.)?(.*?)\\.?");
+    private static final String TCP_LABEL = "_tcp";
+    private static final String UDP_LABEL = "_udp";
 
+    /**
+     * Extract the domain from a name, i.e. everything after the last "_tcp" or "_udp" label.
+     *
+     * @param name a domain, service type or service instance name
+     * @return the Domain
+     */
     public static Domain fromName(String name) {
-        Matcher matcher = DOMAIN_PATTERN.matcher(name);
-        if (matcher.matches()) {
-            return new Domain(matcher.group(4));
-        } else {
-            throw new IllegalArgumentException("Name does not match domain syntax");
+        DnsName dnsName = DnsName.of(name);
+        List<String> labels = dnsName.getLabels();
+        for (int i = labels.size() - 1; i >= 0; i--) {
+            String label = labels.get(i);
+            if (label.equalsIgnoreCase(TCP_LABEL) || label.equalsIgnoreCase(UDP_LABEL)) {
+                return new Domain(dnsName.suffix(i + 1));
+            }
         }
+        return new Domain(dnsName);
     }
 
-    private Domain(String name) {
+    private Domain(DnsName name) {
         this.name = name;
-        labels = Arrays.asList(name.split("\\."));
     }
 
-    public String getName() {
+    public DnsName getName() {
         return name;
     }
 
     public List<String> getLabels() {
-        return labels;
+        return name.getLabels();
     }
 
     @Override
@@ -78,7 +83,7 @@ public class Domain {
     public String toString() {
         return "Domain{" +
                 "name='" + name + '\'' +
-                ", labels=" + labels +
+                ", labels=" + getLabels() +
                 '}';
     }
 }
@@ -0,0 +1,128 @@
+package ch.unitelabs.mdns.dns;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, lock-free pool of canonical instances for values that repeat across packets and cached instances.
+ * Values unique to one device, such as instance names and addresses, are better left out: they gain nothing and
+ * evict the shared ones.
+ * <p>
+ * The pool is a two-way set-associative table: a value hashes to a pair of slots and, when neither holds an
+ * equal value, replaces one of them. It therefore never grows past its capacity and a lost race only costs a
+ * duplicate, never a wrong answer.
+ */
+public final class InternPool {
+    /** Single DNS labels such as "_tcp" or "local". */
+    public static final InternPool LABELS = new InternPool(4096);
+    /**
+     * Full names and name suffixes. Decoding pools every name, an instance's own included, so it is sized for two
+     * names per device at tens of thousands of devices, to keep the shared suffixes from being evicted.
+     */
+    public static final InternPool NAMES = new InternPool(65536);
+    /** Keys of TXT record attributes. */
+    public static final InternPool TXT_KEYS = new InternPool(1024);
+
+    private final AtomicReferenceArray<Object> slots;
+    private final int mask;
+
+    /**
+     * @param capacity number of slots, rounded up to a power of two
+     */
+    public InternPool(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        slots = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+    }
+
+    /**
+     * Return the pooled instance equal to value, pooling value itself if there is none.
+     *
+     * @param value value to intern, may be null
+     * @return the canonical instance
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T intern(T value) {
+        if (value == null) {
+            return null;
+        }
+        int slot = spread(value.hashCode()) & mask;
+        Object current = slots.get(slot);
+        if (value.equals(current)) {
+            return (T) current;
+        }
+        Object other = slots.get(slot ^ 1);
+        if (value.equals(other)) {
+            return (T) other;
+        }
+        slots.lazySet(current == null || other != null ? slot : slot ^ 1, value);
+        return value;
+    }
+
+    /**
+     * Return the pooled String for the UTF-8 bytes at the given absolute offset of the buffer.
+     * <p>
+     * ASCII input, which covers nearly all DNS labels, is matched against the pool byte by byte so a hit
+     * allocates nothing.
+     *
+     * @param buffer buffer holding the bytes, heap or direct
+     * @param offset absolute offset of the first byte
+     * @param length number of bytes
+     * @return the canonical String
+     */
+    public String intern(ByteBuffer buffer, int offset, int length) {
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            byte b = buffer.get(offset + i);
+            if (b < 0) {
+                return intern(decode(buffer, offset, length));
+            }
+            hash = 31 * hash + b;
+        }
+
+        int slot = spread(hash) & mask;
+        Object current = slots.get(slot);
+        if (matches(current, buffer, offset, length)) {
+            return (String) current;
+        }
+        Object other = slots.get(slot ^ 1);
+        if (matches(other, buffer, offset, length)) {
+            return (String) other;
+        }
+        String value = decode(buffer, offset, length);
+        slots.lazySet(current == null || other != null ? slot : slot ^ 1, value);
+        return value;
+    }
+
+    private static boolean matches(Object candidate, ByteBuffer buffer, int offset, int length) {
+        if (!(candidate instanceof String)) {
+            return false;
+        }
+        String s = (String) candidate;
+        if (s.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (s.charAt(i) != buffer.get(offset + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String decode(ByteBuffer buffer, int offset, int length) {
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + offset, length, StandardCharsets.UTF_8);
+        }
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(offset + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -24,12 +24,25 @@ import java.nio.ByteBuffer;
 public abstract class Message {
     protected final ByteBuffer buffer;
 
-    public final static int MAX_LENGTH = 9000; // max size of mDNS packets, in bytes
+    /**
+     * Max size of mDNS packets, in bytes. RFC 6762 caps messages at 9000 bytes even on jumbo-frame links, so this
+     * is also the size to use for receive buffers.
+     */
+    public final static int MAX_LENGTH = 9000;
 
     private final static int USHORT_MASK = 0xFFFF;
 
     protected Message() {
-        buffer = ByteBuffer.allocate(MAX_LENGTH);
+        this(ByteBuffer.allocate(MAX_LENGTH));
+    }
+
+    /**
+     * Use the given buffer as backing storage without copying it.
+     *
+     * @param buffer buffer holding (or receiving) the message, starting at index 0
+     */
+    protected Message(ByteBuffer buffer) {
+        this.buffer = buffer;
     }
 
     protected int readUnsignedShort() {
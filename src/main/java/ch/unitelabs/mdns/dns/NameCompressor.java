@@ -0,0 +1,166 @@
+package ch.unitelabs.mdns.dns;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Per-message table of the offsets at which name suffixes were written, used to emit compression pointers.
+ * <p>
+ * Suffixes are keyed by their case-folded hash and every hit is verified against the bytes already written, so
+ * a hash collision never produces a wrong pointer. Writing a name allocates nothing; call {@link #reset()}
+ * before encoding the next message with the same compressor.
+ */
+public final class NameCompressor {
+    private final static int CAPACITY = 256; // must be a power of two
+    private final static int MAX_SIZE = CAPACITY * 3 / 4;
+    private final static int MAX_POINTER_OFFSET = 0x3FFF;
+    private final static int MAX_LABELS = DnsName.MAX_NAME_LENGTH / 2 + 1;
+
+    private final int[] hashes = new int[CAPACITY];
+    private final int[] offsets = new int[CAPACITY]; // offset + 1, 0 marks an empty slot
+    private int size;
+    private int messageStart;
+
+    // Scratch space for one name: label offsets in the wire form and the hash of the suffix starting there
+    private final int[] labelOffsets = new int[MAX_LABELS];
+    private final int[] suffixHashes = new int[MAX_LABELS];
+
+    public NameCompressor() {
+    }
+
+    /**
+     * Forget every name written so far, for a message starting at offset 0 of its buffer.
+     */
+    public void reset() {
+        reset(0);
+    }
+
+    /**
+     * Forget every name written so far.
+     *
+     * @param messageStart offset of the message header in the buffer; pointers are relative to it
+     */
+    public void reset(int messageStart) {
+        if (size > 0) {
+            Arrays.fill(offsets, 0);
+            size = 0;
+        }
+        this.messageStart = messageStart;
+    }
+
+    /**
+     * Write a name at the buffer's position, replacing its longest suffix already in the message by a pointer.
+     *
+     * @param buffer buffer holding the message being built
+     * @param name   name to write
+     */
+    public void writeName(ByteBuffer buffer, DnsName name) {
+        byte[] wire = name.wire();
+        int labels = hashSuffixes(wire);
+
+        int match = -1;
+        int first = 0;
+        for (; first < labels; first++) {
+            match = find(buffer, wire, labelOffsets[first], suffixHashes[first]);
+            if (match >= 0) {
+                break;
+            }
+        }
+
+        for (int i = 0; i < first; i++) {
+            int offset = buffer.position() - messageStart;
+            if (offset <= MAX_POINTER_OFFSET) {
+                put(suffixHashes[i], offset);
+            }
+            int label = labelOffsets[i];
+            buffer.put(wire, label, 1 + wire[label]);
+        }
+        if (match >= 0) {
+            buffer.putShort((short) (0xC000 | match));
+        } else {
+            buffer.put((byte) 0);
+        }
+    }
+
+    /**
+     * Fill labelOffsets and suffixHashes for every non-root suffix of the name.
+     * <p>
+     * Hashes match {@link DnsName#hash(byte[], int)} and are accumulated from the end of the name, so the whole
+     * name is only scanned twice.
+     *
+     * @return number of labels
+     */
+    private int hashSuffixes(byte[] wire) {
+        int labels = 0;
+        for (int i = 0; wire[i] != 0; i += wire[i] + 1) {
+            labelOffsets[labels++] = i;
+        }
+        int sum = 0;
+        int power = 1;
+        int i = wire.length - 1;
+        for (int label = labels - 1; label >= 0; label--) {
+            for (; i >= labelOffsets[label]; i--) {
+                sum += DnsName.toLower(wire[i]) * power;
+                power *= 31;
+            }
+            suffixHashes[label] = power + sum;
+        }
+        return labels;
+    }
+
+    private int find(ByteBuffer buffer, byte[] wire, int from, int hash) {
+        for (int slot = mix(hash); ; slot = (slot + 1) & (CAPACITY - 1)) {
+            int offset = offsets[slot] - 1;
+            if (offset < 0) {
+                return -1;
+            }
+            if (hashes[slot] == hash && matches(buffer, offset, wire, from)) {
+                return offset;
+            }
+        }
+    }
+
+    private void put(int hash, int offset) {
+        if (size >= MAX_SIZE) {
+            return;
+        }
+        int slot = mix(hash);
+        while (offsets[slot] != 0) {
+            slot = (slot + 1) & (CAPACITY - 1);
+        }
+        hashes[slot] = hash;
+        offsets[slot] = offset + 1;
+        size++;
+    }
+
+    private static int mix(int hash) {
+        return (hash * 0x9E3779B1) >>> 24; // top log2(CAPACITY) bits
+    }
+
+    /**
+     * Compare the name written at the given message offset, following pointers, with a suffix of wire.
+     */
+    private boolean matches(ByteBuffer buffer, int offset, byte[] wire, int from) {
+        int position = messageStart + offset;
+        while (true) {
+            int length = buffer.get(position) & 0xFF;
+            if ((length & 0xC0) == 0xC0) {
+                position = messageStart + (((length & 0x3F) << 8) | (buffer.get(position + 1) & 0xFF));
+                continue;
+            }
+            if (length != wire[from]) {
+                return false;
+            }
+            if (length == 0) {
+                return true;
+            }
+            for (int i = 1; i <= length; i++) {
+                if (DnsName.toLower(buffer.get(position + i)) != DnsName.toLower(wire[from + i])) {
+                    return false;
+                }
+            }
+            position += 1 + length;
+            from += 1 + length;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package ch.unitelabs.mdns.dns;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Per-packet memo of decoded names, keyed by the message offset each name (or name suffix) starts at.
+ * <p>
+ * PTR, SRV, TXT and address records in one mDNS packet typically point at the same few compressed suffixes, so
+ * memoising every label offset lets each suffix be decoded once per packet instead of once per reference. The
+ * table is a small open-addressed map; once it is three quarters full further names are simply not memoised.
+ */
+public final class NameTable {
+    private final static int CAPACITY = 64; // must be a power of two
+    private final static int MAX_SIZE = CAPACITY * 3 / 4;
+
+    private final int[] offsets = new int[CAPACITY];
+    private final DnsName[] names = new DnsName[CAPACITY];
+    private int size;
+
+    NameTable() {
+    }
+
+    /**
+     * Read a name starting at the buffer's position, reusing suffixes already decoded from this message.
+     *
+     * @param buffer buffer holding the complete message, positioned at the start of a name
+     * @return the decoded name; the buffer is left positioned right after it
+     */
+    public DnsName readName(ByteBuffer buffer) {
+        return Record.readNameFromBuffer(buffer, this);
+    }
+
+    DnsName get(int offset) {
+        int key = offset + 1;
+        for (int slot = mix(key); ; slot = (slot + 1) & (CAPACITY - 1)) {
+            int current = offsets[slot];
+            if (current == key) {
+                return names[slot];
+            }
+            if (current == 0) {
+                return null;
+            }
+        }
+    }
+
+    void put(int offset, DnsName name) {
+        if (size >= MAX_SIZE) {
+            return;
+        }
+        int key = offset + 1;
+        int slot = mix(key);
+        while (offsets[slot] != 0 && offsets[slot] != key) {
+            slot = (slot + 1) & (CAPACITY - 1);
+        }
+        if (offsets[slot] == 0) {
+            size++;
+        }
+        offsets[slot] = key;
+        names[slot] = name;
+    }
+
+    private static int mix(int key) {
+        return (key * 0x9E3779B1) >>> 26; // top log2(CAPACITY) bits
+    }
+}
@@ -0,0 +1,105 @@
+package ch.unitelabs.mdns.dns;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/**
+ * NSEC record, which mDNS uses to assert that a name has no records of the types missing from its bitmap
+ * (RFC 6762 section 6.1).
+ */
+public class NsecRecord extends Record {
+    private final DnsName nextDomainName;
+    private final BitSet types;
+
+    private final static int WINDOW_SIZE = 256;
+
+    public NsecRecord(ByteBuffer buffer, DnsName name, Class recordClass, long ttl, int rdLength) {
+        this(buffer, name, recordClass, ttl, rdLength, null);
+    }
+
+    NsecRecord(ByteBuffer buffer, DnsName name, Class recordClass, long ttl, int rdLength, NameTable names) {
+        super(name, recordClass, ttl);
+        int end = buffer.position() + rdLength;
+        nextDomainName = readNameFromBuffer(buffer, names);
+        types = new BitSet();
+        while (buffer.position() + 2 <= end) {
+            int window = buffer.get() & 0xFF;
+            int length = Math.min(buffer.get() & 0xFF, end - buffer.position());
+            for (int i = 0; i < length; i++) {
+                int bits = buffer.get() & 0xFF;
+                for (int bit = 0; bit < 8; bit++) {
+                    if ((bits & (0x80 >>> bit)) != 0) {
+                        types.set(window * WINDOW_SIZE + i * 8 + bit);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @param nextDomainName the record's own name in mDNS
+     * @param types          type codes that exist for the name
+     */
+    public NsecRecord(DnsName name, long ttl, boolean cacheFlush, DnsName nextDomainName, int... types) {
+        super(name, Class.IN, ttl, cacheFlush);
+        this.nextDomainName = nextDomainName;
+        this.types = new BitSet();
+        for (int type : types) {
+            this.types.set(type);
+        }
+    }
+
+    public DnsName getNextDomainName() {
+        return nextDomainName;
+    }
+
+    /**
+     * @param type 16-bit type code
+     * @return true if the bitmap says records of this type exist
+     */
+    public boolean hasType(int type) {
+        return types.get(type);
+    }
+
+    @Override
+    public int getType() {
+        return Type.NSEC.asUnsignedShort();
+    }
+
+    @Override
+    protected void writeRData(ByteBuffer buffer, NameCompressor compressor) {
+        writeName(buffer, nextDomainName, compressor);
+        for (int type = types.nextSetBit(0); type >= 0; ) {
+            int window = type / WINDOW_SIZE;
+            int last = type;
+            for (int next = type; next >= 0 && next / WINDOW_SIZE == window; next = types.nextSetBit(next + 1)) {
+                last = next;
+            }
+            int length = (last % WINDOW_SIZE) / 8 + 1;
+            buffer.put((byte) window);
+            buffer.put((byte) length);
+            int start = window * WINDOW_SIZE;
+            for (int i = 0; i < length; i++) {
+                int bits = 0;
+                for (int bit = 0; bit < 8; bit++) {
+                    if (types.get(start + i * 8 + bit)) {
+                        bits |= 0x80 >>> bit;
+                    }
+                }
+                buffer.put((byte) bits);
+            }
+            type = types.nextSetBit(start + WINDOW_SIZE);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "NsecRecord{" +
+                "name='" + name + '\'' +
+                ", recordClass=" + recordClass +
+                ", ttl=" + ttl +
+                ", nextDomainName='" + nextDomainName + '\'' +
+                ", types=" + types +
+                '}';
+    }
+}
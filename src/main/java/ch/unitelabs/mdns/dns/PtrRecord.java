@@ -23,21 +23,44 @@ import java.nio.ByteBuffer;
 
 public class PtrRecord extends Record {
     private final String userVisibleName;
-    private final String ptrName;
+    private final DnsName ptrName;
 
     public final static String UNTITLED_NAME = "Untitled";
 
-    public PtrRecord(ByteBuffer buffer, String name, Class recordClass, long ttl, int rdLength) {
+    public PtrRecord(ByteBuffer buffer, DnsName name, Class recordClass, long ttl, int rdLength) {
+        this(buffer, name, recordClass, ttl, rdLength, null);
+    }
+
+    PtrRecord(ByteBuffer buffer, DnsName name, Class recordClass, long ttl, int rdLength, NameTable names) {
         super(name, recordClass, ttl);
         if (rdLength > 0) {
-            ptrName = readNameFromBuffer(buffer);
+            ptrName = readNameFromBuffer(buffer, names);
         } else {
-            ptrName = "";
+            ptrName = DnsName.ROOT;
         }
         userVisibleName = buildUserVisibleName();
     }
 
-    public String getPtrName() {
+    /**
+     * PTR records are shared records, so the cache-flush bit is never set.
+     */
+    public PtrRecord(DnsName name, long ttl, DnsName ptrName) {
+        super(name, Class.IN, ttl);
+        this.ptrName = ptrName;
+        userVisibleName = buildUserVisibleName();
+    }
+
+    @Override
+    public int getType() {
+        return Type.PTR.asUnsignedShort();
+    }
+
+    @Override
+    protected void writeRData(ByteBuffer buffer, NameCompressor compressor) {
+        writeName(buffer, ptrName, compressor);
+    }
+
+    public DnsName getPtrName() {
         return ptrName;
     }
 
@@ -46,9 +69,8 @@ public class PtrRecord extends Record {
     }
 
     private String buildUserVisibleName() {
-        String[] parts = ptrName.split("\\.");
-        if (parts[0].length() > 0) {
-            return parts[0];
+        if (!ptrName.isRoot()) {
+            return ptrName.getLabel(0);
         } else {
             return UNTITLED_NAME;
         }
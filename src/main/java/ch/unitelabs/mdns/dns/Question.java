@@ -28,66 +28,90 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.MulticastSocket;
+import java.net.SocketAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 
 public class Question extends Message {
-    private final String qName;
+    private final DnsName qName;
     private final QType qType;
     private final QClass qClass;
+    private final boolean unicastResponse;
 
     private final static Logger logger = LoggerFactory.getLogger(Question.class);
 
-    private final static short UNICAST_RESPONSE_BIT = (short) 0x8000;
+    public final static int UNICAST_RESPONSE_BIT = 0x8000; // top bit of QCLASS, RFC 6762 section 5.4
+    private final static ByteBuffer NO_BUFFER = ByteBuffer.allocate(0).asReadOnlyBuffer();
+    final static int QCLASS_MASK = ~UNICAST_RESPONSE_BIT & Record.USHORT_MASK;
 
     public static Question fromBuffer(ByteBuffer buffer) {
-        String name = Record.readNameFromBuffer(buffer);
+        return fromBuffer(buffer, null);
+    }
+
+    static Question fromBuffer(ByteBuffer buffer, NameTable names) {
+        DnsName name = Record.readNameFromBuffer(buffer, names);
         QType type = QType.fromInt(buffer.getShort() & Record.USHORT_MASK);
-        QClass qClass = QClass.fromInt(buffer.getShort() & Record.USHORT_MASK);
-        return new Question(name, type, qClass);
+        int rawClass = buffer.getShort() & Record.USHORT_MASK;
+        return new Question(name, type, QClass.fromInt(rawClass), (rawClass & UNICAST_RESPONSE_BIT) != 0);
+    }
+
+    public Question(DnsName name, QType type, QClass qClass) {
+        this(name, type, qClass, false);
     }
 
-    public Question(String name, QType type, QClass qClass) {
-        super();
+    /**
+     * @param unicastResponse whether to ask for unicast replies (a QU question, RFC 6762 section 5.4), as a
+     *                        first-time lookup should; other hosts then don't have to parse the answers
+     */
+    public Question(DnsName name, QType type, QClass qClass, boolean unicastResponse) {
+        // Questions are encoded into a pooled buffer when asked, most are only ever parsed or compared
+        super(NO_BUFFER);
         this.qName = name;
         this.qType = type;
         this.qClass = qClass;
-        build();
+        this.unicastResponse = unicastResponse;
     }
 
     public Question(Service service, Domain domain) {
-        super();
-        this.qName = service.getName() + "." + domain.getName();
-        this.qType = QType.PTR;
-        this.qClass = QClass.IN;
-        build();
+        this(service, domain, false);
     }
 
-    private void build() {
-        buildHeader();
+    public Question(Service service, Domain domain, boolean unicastResponse) {
+        this(service.getName().append(domain.getName()), QType.PTR, QClass.IN, unicastResponse);
+    }
+
+    private void build(ByteBuffer buffer) {
+        buildHeader(buffer);
 
         // QNAME
-        for (String label : qName.split("\\.")) {
-            addLabelToBuffer(label);
-        }
-        addLabelToBuffer("");
+        qName.writeTo(buffer);
 
         // QTYPE
         buffer.putShort((short) qType.asUnsignedShort());
 
         // QCLASS
-        // TODO Figure out when to use to the unicast response bit
-//        buffer.putShort((short) (qClass.asUnsignedShort() | UNICAST_RESPONSE_BIT));
-        buffer.putShort((short) (qClass.asUnsignedShort()));
+        buffer.putShort(classField());
     }
 
-    private void addLabelToBuffer(String label) {
-        byte[] labelBytes = label.getBytes();
-        buffer.put((byte) (labelBytes.length & 0xff));
-        buffer.put(labelBytes);
+    private short classField() {
+        return (short) (unicastResponse ? qClass.asUnsignedShort() | UNICAST_RESPONSE_BIT : qClass.asUnsignedShort());
     }
 
-    private void buildHeader() {
+    /**
+     * Write the question in wire format at the buffer's position, compressing its name against those already in
+     * the message.
+     *
+     * @param buffer     buffer holding the message being built
+     * @param compressor name offsets of the message being built
+     */
+    public void writeTo(ByteBuffer buffer, NameCompressor compressor) {
+        compressor.writeName(buffer, qName);
+        buffer.putShort((short) qType.asUnsignedShort());
+        buffer.putShort(classField());
+    }
+
+    private void buildHeader(ByteBuffer buffer) {
 //        super.buildHeader();
         buffer.putShort((short) 0x0); // ID should be 0
         buffer.put((byte) 0x0);
@@ -106,17 +130,48 @@ public class Question extends Message {
         }
     }
 
+    /**
+     * Send the question from a channel bound to the mDNS port, where unicast replies to a QU question arrive.
+     *
+     * @param channel channel to send from
+     * @param group   mDNS group and port to send to
+     */
+    public void askOn(DatagramChannel channel, SocketAddress group) throws IOException {
+        logger.debug("Asking question {} on {}", this, group);
+        ByteBuffer packet = BufferPool.HEAP.acquire();
+        try {
+            build(packet);
+            packet.flip();
+            channel.send(packet, group);
+        } finally {
+            BufferPool.HEAP.release(packet);
+        }
+    }
+
     private void askWithGroup(InetAddress group, MulticastSocket socket) throws IOException {
-        DatagramPacket packet = new DatagramPacket(buffer.array(), buffer.position(), group, Query.MDNS_PORT);
-        packet.setAddress(group);
-        socket.send(packet);
+        ByteBuffer buffer = BufferPool.HEAP.acquire();
+        try {
+            build(buffer);
+            DatagramPacket packet = new DatagramPacket(buffer.array(), buffer.position(), group, Query.MDNS_PORT);
+            socket.send(packet);
+        } finally {
+            BufferPool.HEAP.release(buffer);
+        }
+    }
+
+    /**
+     * @return the question's length in wire format without name compression, an upper bound on the space it
+     * takes in a message
+     */
+    public int getWireLength() {
+        return qName.getWireLength() + 4;
     }
 
     public boolean answeredBy(Record record) {
         return record.getName().equals(qName);
     }
 
-    String getQName() {
+    DnsName getQName() {
         return qName;
     }
 
@@ -128,12 +183,17 @@ public class Question extends Message {
         return qClass;
     }
 
+    public boolean isUnicastResponse() {
+        return unicastResponse;
+    }
+
     @Override
     public String toString() {
         return "Question{" +
                 "qName=" + qName +
                 ", qType=" + qType +
                 ", qClass=" + qClass +
+                (unicastResponse ? ", QU" : "") +
                 '}';
     }
 
@@ -156,6 +216,7 @@ public class Question extends Message {
     }
 
     public enum QType {
+        UNSUPPORTED(0),
         A(1),
         NS(2),
         CNAME(5),
@@ -176,13 +237,17 @@ public class Question extends Message {
 
         private final int value;
 
-        public static QType fromInt(int val) {
+        private final static QType[] BY_VALUE = new QType[ANY.value + 1];
+
+        static {
             for (QType type : values()) {
-                if (type.value == val) {
-                    return type;
-                }
+                BY_VALUE[type.value] = type;
             }
-            throw new IllegalArgumentException("Can't convert " + val + " to a QType");
+        }
+
+        public static QType fromInt(int val) {
+            QType type = val >= 0 && val < BY_VALUE.length ? BY_VALUE[val] : null;
+            return type != null ? type : UNSUPPORTED;
         }
 
         QType(int value) {
@@ -195,18 +260,15 @@ public class Question extends Message {
     }
 
     public enum QClass {
+        UNSUPPORTED(0),
         IN(1),
         ANY(255);
 
         private final int value;
 
         public static QClass fromInt(int val) {
-            for (QClass c : values()) {
-                if (c.value == (val & ~UNICAST_RESPONSE_BIT)) {
-                    return c;
-                }
-            }
-            throw new IllegalArgumentException("Can't convert " + val + " to a QClass");
+            int qClass = val & QCLASS_MASK;
+            return qClass == IN.value ? IN : qClass == ANY.value ? ANY : UNSUPPORTED;
         }
 
         QClass(int value) {
@@ -23,98 +23,245 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.UnsupportedEncodingException;
-import java.net.UnknownHostException;
-import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.stream.Collectors;
 
 public abstract class Record {
-    protected final String name;
+    protected final DnsName name;
     protected final long ttl;
 
     protected final Class recordClass;
+    private boolean cacheFlush;
 
     private final static Logger logger = LoggerFactory.getLogger(Record.class);
 
     public final static int USHORT_MASK = 0xFFFF;
+    public final static int CLASS_MASK = 0x7FFF; // the top bit is the mDNS cache-flush bit
     public final static long UINT_MASK = 0xFFFFFFFFL;
+    public final static int CACHE_FLUSH_BIT = 0x8000;
     public final static String NAME_CHARSET = "UTF-8";
 
+    // Labels plus compression pointers followed while decoding one name, to stop pointer loops
+    private final static int MAX_NAME_DEPTH = 255;
+
     public static Record fromBuffer(ByteBuffer buffer) {
-        String name = readNameFromBuffer(buffer);
-        Type type = Type.fromInt(buffer.getShort() & USHORT_MASK);
+        return fromBuffer(buffer, new NameTable());
+    }
+
+    static Record fromBuffer(ByteBuffer buffer, NameTable names) {
+        DnsName name = readNameFromBuffer(buffer, names);
+        int type = buffer.getShort() & USHORT_MASK;
 //        int rrClassByte = buffer.getShort() & 0x7FFF;
         int tmp = buffer.getShort() & 0xFFFF;
-        // FIXME allow the user to see that cache's should be flushed?
-        boolean flushCache = (tmp & 0x8000) == 0x8000;
-        int rrClassByte = tmp & 0x7FFF;
+        boolean flushCache = (tmp & CACHE_FLUSH_BIT) == CACHE_FLUSH_BIT;
+        int rrClassByte = tmp & CLASS_MASK;
         Class recordClass = Class.fromInt(rrClassByte);
         long ttl = buffer.getInt() & UINT_MASK;
         int rdLength = buffer.getShort() & USHORT_MASK;
 
-        switch (type) {
-            case A:
-                try {
-                    return new ARecord(buffer, name, recordClass, ttl);
-                } catch (UnknownHostException e) {
-                    throw new IllegalArgumentException("Buffer does not represent a valid A record");
-                }
-            case AAAA:
-                try {
-                    return new AaaaRecord(buffer, name, recordClass, ttl);
-                } catch (UnknownHostException e) {
-                    throw new IllegalArgumentException("Buffer does not represent a valid AAAA record");
-                }
-            case PTR:
-                return new PtrRecord(buffer, name, recordClass, ttl, rdLength);
-            case SRV:
-                return new SrvRecord(buffer, name, recordClass, ttl);
-            case TXT:
-                return new TxtRecord(buffer, name, recordClass, ttl, rdLength);
-            default:
-                // logger.debug("Buffer represents an unsupported record type, skipping ahead {} bytes", rdLength);
-                return new UnknownRecord(buffer, name, recordClass, ttl, rdLength);
+        RecordDecoder decoder = RecordDecoders.get(type);
+        if (decoder == null) {
+            // logger.debug("Buffer represents an unsupported record type, skipping ahead {} bytes", rdLength);
+            Record record = new UnknownRecord(buffer, name, type, recordClass, ttl, rdLength);
+            record.cacheFlush = flushCache;
+            return record;
         }
+        int end = buffer.position() + rdLength;
+        Record record = decoder.decode(buffer, names, name, recordClass, ttl, rdLength);
+        record.cacheFlush = flushCache;
+        // Whatever the decoder consumed, the next record starts right after this one's rdata
+        buffer.position(end);
+        return record;
     }
 
-    protected Record(String name, Class recordClass, long ttl) {
+    protected Record(DnsName name, Class recordClass, long ttl) {
         this.name = name;
         this.recordClass = recordClass;
         this.ttl = ttl;
     }
 
-    public static String readNameFromBuffer(ByteBuffer buffer) {
-        List<String> labels = new ArrayList<>();
-        int labelLength;
-        int continueFrom = -1;
-
-        try {
-            do {
-                buffer.mark();
-                labelLength = buffer.get() & 0xFF;
-                if (isPointer(labelLength)) {
-                    buffer.reset();
-                    int offset = buffer.getShort() & 0x3FFF;
-                    if (continueFrom < 0) {
-                        continueFrom = buffer.position();
-                    }
-                    buffer.position(offset);
-                } else {
-                    String label = readLabel(buffer, labelLength);
-                    labels.add(label);
-                }
-            } while (labelLength != 0);
+    protected Record(DnsName name, Class recordClass, long ttl, boolean cacheFlush) {
+        this(name, recordClass, ttl);
+        this.cacheFlush = cacheFlush;
+    }
+
+    /**
+     * @return the record's 16-bit type code
+     */
+    public abstract int getType();
+
+    /**
+     * Whether the sender set the mDNS cache-flush bit: this record replaces any cached record of the same name,
+     * type and class rather than adding to them.
+     *
+     * @return true if the cache-flush bit is set
+     */
+    public boolean isCacheFlush() {
+        return cacheFlush;
+    }
+
+    /**
+     * Whether the record can be written back with {@link #writeTo(ByteBuffer, NameCompressor)}. Records of types
+     * without a decoder are decoded without their rdata, so they can't.
+     *
+     * @return true if the record can be encoded
+     */
+    public boolean canEncode() {
+        return true;
+    }
 
-        } catch (BufferUnderflowException e) {
-            logger.error(e.getMessage());
+    /**
+     * Write the record in wire format at the buffer's position, without name compression.
+     * <p>
+     * The bytes can be copied anywhere in a message, which is what pre-encoded answers need.
+     *
+     * @param buffer buffer to write to
+     */
+    public void writeTo(ByteBuffer buffer) {
+        writeTo(buffer, null);
+    }
+
+    /**
+     * Write the record in wire format at the buffer's position, compressing names against those already in the
+     * message.
+     *
+     * @param buffer     buffer holding the message being built
+     * @param compressor name offsets of the message being built, or null to write names uncompressed
+     */
+    public void writeTo(ByteBuffer buffer, NameCompressor compressor) {
+        writeName(buffer, name, compressor);
+        buffer.putShort((short) getType());
+        buffer.putShort((short) (recordClass.asUnsignedShort() | (cacheFlush ? CACHE_FLUSH_BIT : 0)));
+        buffer.putInt((int) ttl);
+        int rdLengthOffset = buffer.position();
+        buffer.putShort((short) 0);
+        writeRData(buffer, compressor);
+        buffer.putShort(rdLengthOffset, (short) (buffer.position() - rdLengthOffset - 2));
+    }
+
+    /**
+     * Write the rdata at the buffer's position; the RDLENGTH field is filled in afterwards.
+     */
+    protected abstract void writeRData(ByteBuffer buffer, NameCompressor compressor);
+
+    protected static void writeName(ByteBuffer buffer, DnsName name, NameCompressor compressor) {
+        if (compressor == null) {
+            name.writeTo(buffer);
+        } else {
+            compressor.writeName(buffer, name);
+        }
+    }
+
+    public static DnsName readNameFromBuffer(ByteBuffer buffer) {
+        return readNameFromBuffer(buffer, null);
+    }
+
+    /**
+     * Read a name starting at the buffer's position and advance past it.
+     *
+     * @param buffer buffer holding a complete message, positioned at the start of a name
+     * @param names  memo of suffixes already decoded from this message, or null
+     * @return the decoded name
+     */
+    static DnsName readNameFromBuffer(ByteBuffer buffer, NameTable names) {
+        DnsName name = readNameAt(buffer, buffer.position(), names, 0);
+        if (!skipName(buffer)) {
+            logger.error("Name at offset {} runs past the end of the packet", buffer.position());
+        }
+        return name;
+    }
+
+    /**
+     * Decode the name (or name suffix) starting at the given offset, following compression pointers.
+     * <p>
+     * Every label offset visited is memoised in names, so a suffix shared by several records is decoded once.
+     */
+    private static DnsName readNameAt(ByteBuffer buffer, int offset, NameTable names, int depth) {
+        if (names != null) {
+            DnsName memo = names.get(offset);
+            if (memo != null) {
+                return memo;
+            }
         }
-        if (continueFrom >= 0) {
-            buffer.position(continueFrom);
+        if (offset >= buffer.limit() || depth > MAX_NAME_DEPTH) {
+            return DnsName.ROOT;
         }
 
-        return labels.stream().collect(Collectors.joining("."));
+        DnsName name;
+        int labelLength = buffer.get(offset) & 0xFF;
+        if (isPointer(labelLength)) {
+            if (offset + 1 >= buffer.limit()) {
+                return DnsName.ROOT;
+            }
+            int target = ((labelLength & 0x3F) << 8) | (buffer.get(offset + 1) & 0xFF);
+            name = readNameAt(buffer, target, names, depth + 1);
+        } else if (labelLength == 0) {
+            name = DnsName.ROOT;
+        } else {
+            if (labelLength > DnsName.MAX_LABEL_LENGTH || offset + 1 + labelLength > buffer.limit()) {
+                return DnsName.ROOT;
+            }
+            DnsName suffix = readNameAt(buffer, offset + 1 + labelLength, names, depth + 1);
+            if (suffix.getWireLength() + 1 + labelLength > DnsName.MAX_NAME_LENGTH) {
+                return suffix;
+            }
+            name = InternPool.NAMES.intern(suffix.prepend(buffer, offset + 1, labelLength));
+        }
+
+        if (names != null) {
+            names.put(offset, name);
+        }
+        return name;
+    }
+
+    /**
+     * Advance the buffer past an encoded name without decoding it.
+     *
+     * @param buffer buffer positioned at the start of a name
+     * @return false if the name runs past the buffer's limit
+     */
+    static boolean skipName(ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            int pointerOffset = buffer.position();
+            int labelLength = buffer.get() & 0xFF;
+            if (isPointer(labelLength)) {
+                if (!buffer.hasRemaining()) {
+                    return false;
+                }
+                // Pointers may only refer to an earlier occurrence of a name
+                int target = ((labelLength & 0x3F) << 8) | (buffer.get() & 0xFF);
+                return target < pointerOffset;
+            }
+            if (labelLength == 0) {
+                return true;
+            }
+            if (labelLength > DnsName.MAX_LABEL_LENGTH || buffer.remaining() < labelLength) {
+                return false;
+            }
+            buffer.position(buffer.position() + labelLength);
+        }
+        return false;
+    }
+
+    /**
+     * Check the rdata length of record types whose rdata has a fixed or minimum size.
+     *
+     * @param type     16-bit type code
+     * @param rdLength length of the rdata, in bytes
+     * @return false if no record of this type can have this length
+     */
+    static boolean isValidLength(int type, int rdLength) {
+        switch (Type.fromInt(type)) {
+            case A:
+                return rdLength == 4;
+            case AAAA:
+                return rdLength == 16;
+            case SRV:
+                return rdLength >= 7; // priority, weight, port and at least the root name
+            default:
+                return true;
+        }
     }
 
     private static boolean isPointer(int octet) {
@@ -147,7 +294,7 @@ public abstract class Record {
         return strings;
     }
 
-    public String getName() {
+    public DnsName getName() {
         return name;
     }
 
@@ -164,7 +311,7 @@ public abstract class Record {
                 '}';
     }
 
-    enum Type {
+    public enum Type {
         UNSUPPORTED(0),
         A(1),
         NS(2),
@@ -178,17 +325,23 @@ public abstract class Record {
         MX(15),
         TXT(16),
         AAAA(28),
-        SRV(33);
+        SRV(33),
+        OPT(41),
+        NSEC(47);
 
         private final int value;
 
-        public static Type fromInt(int val) {
+        private final static Type[] BY_VALUE = new Type[NSEC.value + 1];
+
+        static {
             for (Type type : values()) {
-                if (type.value == val) {
-                    return type;
-                }
+                BY_VALUE[type.value] = type;
             }
-            return UNSUPPORTED;
+        }
+
+        public static Type fromInt(int val) {
+            Type type = val >= 0 && val < BY_VALUE.length ? BY_VALUE[val] : null;
+            return type != null ? type : UNSUPPORTED;
         }
 
         Type(int value) {
@@ -200,20 +353,14 @@ public abstract class Record {
         }
     }
 
-    enum Class {
+    public enum Class {
+        UNSUPPORTED(0),
         IN(1);
 
         private final int value;
 
         public static Class fromInt(int val) {
-            for (Class c : values()) {
-                if (c.value == val) {
-                    return c;
-                }
-            }
-            // throw new IllegalArgumentException(String.format("Can't convert 0x%04x to a Class", val));
-            logger.error("Can't convert 0x%04x to a Class", val);
-            return null;
+            return val == IN.value ? IN : UNSUPPORTED;
         }
 
         Class(int value) {
@@ -0,0 +1,27 @@
+package ch.unitelabs.mdns.dns;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes the rdata of one resource record type.
+ * <p>
+ * Decoders are registered with {@link RecordDecoders} under the 16-bit type code they handle.
+ */
+@FunctionalInterface
+public interface RecordDecoder {
+    /**
+     * Decode a record whose owner name, class and TTL have already been read.
+     * <p>
+     * The buffer is positioned at the start of the rdata. Decoders don't need to consume exactly rdLength bytes:
+     * the caller moves to the next record afterwards.
+     *
+     * @param buffer      buffer holding the complete message
+     * @param names       memo of names decoded from this message, use {@link NameTable#readName} for names in rdata
+     * @param name        owner name of the record
+     * @param recordClass class of the record
+     * @param ttl         time to live, in seconds
+     * @param rdLength    length of the rdata, in bytes
+     * @return the decoded record
+     */
+    Record decode(ByteBuffer buffer, NameTable names, DnsName name, Record.Class recordClass, long ttl, int rdLength);
+}
@@ -0,0 +1,73 @@
+package ch.unitelabs.mdns.dns;
+
+/**
+ * Registry of {@link RecordDecoder}s indexed by the 16-bit record type code.
+ * <p>
+ * Lookups are two array reads and never lock; registration copies the affected page, so it can happen at any time
+ * while packets are being parsed. Types without a decoder are skipped by their rdata length.
+ */
+public final class RecordDecoders {
+    private final static int PAGE_SIZE = 256;
+
+    private static volatile RecordDecoder[][] pages = new RecordDecoder[0x10000 / PAGE_SIZE][];
+
+    static {
+        register(Record.Type.A, (buffer, names, name, recordClass, ttl, rdLength) ->
+                new ARecord(buffer, name, recordClass, ttl));
+        register(Record.Type.AAAA, (buffer, names, name, recordClass, ttl, rdLength) ->
+                new AaaaRecord(buffer, name, recordClass, ttl));
+        register(Record.Type.PTR, (buffer, names, name, recordClass, ttl, rdLength) ->
+                new PtrRecord(buffer, name, recordClass, ttl, rdLength, names));
+        register(Record.Type.SRV, (buffer, names, name, recordClass, ttl, rdLength) ->
+                new SrvRecord(buffer, name, recordClass, ttl, names));
+        register(Record.Type.TXT, (buffer, names, name, recordClass, ttl, rdLength) ->
+                new TxtRecord(buffer, name, recordClass, ttl, rdLength));
+        register(Record.Type.NSEC, (buffer, names, name, recordClass, ttl, rdLength) ->
+                new NsecRecord(buffer, name, recordClass, ttl, rdLength, names));
+    }
+
+    private RecordDecoders() {
+    }
+
+    /**
+     * Get the decoder registered for a type code.
+     *
+     * @param type 16-bit type code
+     * @return the decoder, or null if records of this type are skipped
+     */
+    public static RecordDecoder get(int type) {
+        RecordDecoder[] page = pages[(type >>> 8) & 0xFF];
+        return page == null ? null : page[type & 0xFF];
+    }
+
+    public static void register(Record.Type type, RecordDecoder decoder) {
+        register(type.asUnsignedShort(), decoder);
+    }
+
+    /**
+     * Register (or replace) the decoder for a type code, e.g. to decode HINFO, NSEC or OPT records.
+     *
+     * @param type    16-bit type code
+     * @param decoder decoder for that type, or null to skip records of this type
+     */
+    public static synchronized void register(int type, RecordDecoder decoder) {
+        if (type < 0 || type > Record.USHORT_MASK) {
+            throw new IllegalArgumentException("Can't register a decoder for type " + type);
+        }
+        RecordDecoder[][] copy = pages.clone();
+        RecordDecoder[] page = copy[type >>> 8];
+        page = page == null ? new RecordDecoder[PAGE_SIZE] : page.clone();
+        page[type & 0xFF] = decoder;
+        copy[type >>> 8] = page;
+        pages = copy;
+    }
+
+    /**
+     * Remove the decoder for a type code, so records of this type are skipped.
+     *
+     * @param type 16-bit type code
+     */
+    public static void unregister(int type) {
+        register(type, null);
+    }
+}
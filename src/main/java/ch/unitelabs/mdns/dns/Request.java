@@ -0,0 +1,285 @@
+package ch.unitelabs.mdns.dns;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An incoming mDNS query, as seen by a responder.
+ * <p>
+ * The question section is validated and decoded in place; known answers and the authority records of probes are
+ * bounds-checked and only decoded when asked for. Invalid packets (responses, non-zero OPCODE or RCODE, truncated sections) report
+ * {@link #isValid()} false.
+ */
+public class Request extends Message {
+    private int id;
+    private int numQuestions;
+    private int numAnswers;
+    private int numAuthorities;
+    private boolean truncated;
+
+    private DnsName[] questionNames;
+    private int[] questionTypes;
+    private int[] questionClasses;
+    private int questionsEnd;
+    private int[] knownAnswerOffsets;
+    private int[] authorityOffsets;
+    private boolean valid;
+
+    private final static Logger logger = LoggerFactory.getLogger(Request.class);
+
+    private final static int QR_MASK = 0x8000;
+    private final static int OPCODE_MASK = 0x7800;
+    private final static int RCODE_MASK = 0xF;
+    private final static int TC_MASK = 0x0200;
+    private final static int HEADER_LENGTH = 12;
+    private final static int QUESTION_FIXED_LENGTH = 4; // QTYPE and QCLASS
+    private final static int MIN_QUESTION_LENGTH = 1 + QUESTION_FIXED_LENGTH;
+    private final static int RECORD_FIXED_LENGTH = 10; // TYPE, CLASS, TTL and RDLENGTH
+
+    /**
+     * Parse the datagram between the buffer's position and limit in place, without copying it.
+     * <p>
+     * Questions are decoded before this method returns, but {@link #getQuestionSection()} reads from the given
+     * buffer, so it must not be used once the buffer is reused for another datagram.
+     *
+     * @param datagram buffer holding a received datagram, heap or direct
+     * @return the parsed Request
+     */
+    public static Request createFrom(ByteBuffer datagram) {
+        // Compression pointers are relative to the start of the message
+        Request request = new Request(datagram.position() == 0 ? datagram : datagram.slice());
+        request.valid = request.parseHeader() && request.parseQuestions() && request.indexKnownAnswers();
+        if (request.valid) {
+            request.indexAuthorities();
+        } else {
+            request.numQuestions = 0;
+            request.numAnswers = 0;
+            request.numAuthorities = 0;
+        }
+        return request;
+    }
+
+    private Request(ByteBuffer message) {
+        super(message);
+    }
+
+    private boolean parseHeader() {
+        if (buffer.remaining() < HEADER_LENGTH) {
+            return false;
+        }
+        id = readUnsignedShort();
+        int codes = readUnsignedShort();
+        if ((codes & (QR_MASK | OPCODE_MASK | RCODE_MASK)) != 0) {
+            // RFC 6762 section 18: queries with a non-zero OPCODE or RCODE are silently ignored
+            return false;
+        }
+        truncated = (codes & TC_MASK) != 0;
+        numQuestions = readUnsignedShort();
+        numAnswers = readUnsignedShort();
+        numAuthorities = readUnsignedShort(); // only used while probing
+        readUnsignedShort(); // ARCOUNT
+        if ((long) numQuestions * MIN_QUESTION_LENGTH > buffer.remaining()) {
+            logger.debug("Question count can't fit in a {} byte packet", buffer.limit());
+            return false;
+        }
+        return true;
+    }
+
+    private boolean parseQuestions() {
+        questionNames = new DnsName[numQuestions];
+        questionTypes = new int[numQuestions];
+        questionClasses = new int[numQuestions];
+        NameTable names = new NameTable();
+        for (int i = 0; i < numQuestions; i++) {
+            int offset = buffer.position();
+            if (!Record.skipName(buffer) || buffer.remaining() < QUESTION_FIXED_LENGTH) {
+                logger.debug("Question {} is truncated", i);
+                return false;
+            }
+            questionTypes[i] = buffer.getShort() & Record.USHORT_MASK;
+            questionClasses[i] = buffer.getShort() & Record.USHORT_MASK;
+            int end = buffer.position();
+            buffer.position(offset);
+            questionNames[i] = Record.readNameFromBuffer(buffer, names);
+            buffer.position(end);
+        }
+        questionsEnd = buffer.position();
+        return true;
+    }
+
+    private boolean indexKnownAnswers() {
+        if ((long) numAnswers * (1 + RECORD_FIXED_LENGTH) > buffer.remaining()) {
+            logger.debug("Known-answer count can't fit in a {} byte packet", buffer.limit());
+            return false;
+        }
+        knownAnswerOffsets = new int[numAnswers];
+        for (int i = 0; i < numAnswers; i++) {
+            knownAnswerOffsets[i] = buffer.position();
+            if (!skipRecord()) {
+                logger.debug("Known answer {} is truncated or has a bad rdata length", i);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Index the authority section, which only probes fill. A malformed record ends the section rather than
+     * invalidating the query, whose questions still deserve an answer.
+     */
+    private void indexAuthorities() {
+        authorityOffsets = new int[Math.min(numAuthorities, buffer.remaining() / (1 + RECORD_FIXED_LENGTH))];
+        int count = 0;
+        while (count < authorityOffsets.length) {
+            authorityOffsets[count] = buffer.position();
+            if (!skipRecord()) {
+                logger.debug("Authority record {} is truncated or has a bad rdata length", count);
+                break;
+            }
+            count++;
+        }
+        numAuthorities = count;
+    }
+
+    /**
+     * Move past the record at the buffer's position.
+     *
+     * @return false if the record is truncated or its rdata length is wrong for its type
+     */
+    private boolean skipRecord() {
+        if (!Record.skipName(buffer) || buffer.remaining() < RECORD_FIXED_LENGTH) {
+            return false;
+        }
+        int type = buffer.getShort() & Record.USHORT_MASK;
+        buffer.getShort(); // CLASS
+        buffer.getInt(); // TTL
+        int rdLength = buffer.getShort() & Record.USHORT_MASK;
+        if (rdLength > buffer.remaining() || !Record.isValidLength(type, rdLength)) {
+            return false;
+        }
+        buffer.position(buffer.position() + rdLength);
+        return true;
+    }
+
+    /**
+     * Whether the packet passed validation: a well-formed mDNS query. Invalid packets have no questions.
+     *
+     * @return true if the packet should be answered
+     */
+    public boolean isValid() {
+        return valid;
+    }
+
+    /**
+     * @return the query ID, which is only echoed back to legacy unicast resolvers
+     */
+    public int getId() {
+        return id;
+    }
+
+    public int getQuestionCount() {
+        return numQuestions;
+    }
+
+    /**
+     * @return number of known answers the querier listed
+     */
+    public int getKnownAnswerCount() {
+        return numAnswers;
+    }
+
+    /**
+     * @return number of records in the authority section, where a probe lists the records it proposes to claim
+     */
+    public int getAuthorityCount() {
+        return numAuthorities;
+    }
+
+    /**
+     * Whether the TC bit is set: the querier's known answers continue in further packets (RFC 6762 section 7.2).
+     *
+     * @return true if more known answers follow
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * Decode a known answer. Like {@link #getQuestionSection()}, this reads from the buffer given to
+     * {@link #createFrom(ByteBuffer)}.
+     *
+     * @param index known-answer index, in packet order
+     * @return the record, with the TTL the querier has left for it
+     */
+    public Record getKnownAnswer(int index) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(knownAnswerOffsets[index]);
+        return Record.fromBuffer(view);
+    }
+
+    /**
+     * Decode an authority record, reading from the buffer given to {@link #createFrom(ByteBuffer)}.
+     *
+     * @param index authority record index, in packet order
+     * @return the record a probing host proposes
+     */
+    public Record getAuthorityRecord(int index) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(authorityOffsets[index]);
+        return Record.fromBuffer(view);
+    }
+
+    public DnsName getQuestionName(int index) {
+        return questionNames[index];
+    }
+
+    /**
+     * @param index question index, in packet order
+     * @return the 16-bit QTYPE, 255 standing for any type
+     */
+    public int getQuestionType(int index) {
+        return questionTypes[index];
+    }
+
+    /**
+     * @param index question index, in packet order
+     * @return the question's class, without the unicast-response bit
+     */
+    public Question.QClass getQuestionClass(int index) {
+        return Question.QClass.fromInt(questionClasses[index]);
+    }
+
+    /**
+     * @param index question index, in packet order
+     * @return true if the querier asked for a unicast response (the QU bit)
+     */
+    public boolean isUnicastResponse(int index) {
+        return (questionClasses[index] & Question.UNICAST_RESPONSE_BIT) != 0;
+    }
+
+    /**
+     * The raw question section, starting right after the header. Names in it may point back into the header-less
+     * section itself, so it must be copied to offset 12 of a reply.
+     *
+     * @return a read-only view of the question section
+     */
+    public ByteBuffer getQuestionSection() {
+        ByteBuffer section = buffer.asReadOnlyBuffer();
+        section.limit(questionsEnd).position(HEADER_LENGTH);
+        return section;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("Request{id=").append(id).append(", questions=[");
+        for (int i = 0; i < numQuestions; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(questionNames[i]).append(' ').append(Record.Type.fromInt(questionTypes[i]));
+        }
+        return sb.append("], knownAnswers=").append(numAnswers).append('}').toString();
+    }
+}
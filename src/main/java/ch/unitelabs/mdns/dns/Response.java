@@ -24,125 +24,353 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 public class Response extends Message {
     private final List<Question> questions;
-    private final List<Record> records;
+    private final boolean lazy;
     private int numQuestions;
     private int numAnswers;
     private int numNameServers;
     private int numAdditionalRecords;
 
+    // Index of the answer, authority and additional sections, in packet order
+    private int numRecords;
+    private int[] recordOffsets;
+    private int[] recordTypes;
+    private int[] recordTtlOffsets;
+    private boolean hasGoodbye;
+    private DnsName[] recordNames;
+    private Record[] records;
+    private int[] questionOffsets;
+    private NameTable names;
+    private boolean valid;
+
     private final static Logger logger = LoggerFactory.getLogger(Response.class);
 
     private final static int QR_MASK = 0x8000;
     private final static int OPCODE_MASK = 0x7800;
     private final static int RCODE_MASK = 0xF;
+    private final static int HEADER_LENGTH = 12;
+    private final static int QUESTION_FIXED_LENGTH = 4; // QTYPE and QCLASS
+    private final static int RR_FIXED_LENGTH = 10; // TYPE, CLASS, TTL and RDLENGTH
+    private final static int MIN_QUESTION_LENGTH = 1 + QUESTION_FIXED_LENGTH; // root name
+    private final static int MIN_RECORD_LENGTH = 1 + RR_FIXED_LENGTH;
+    private final static int ID_LENGTH = 2;
+    private final static int TTL_LENGTH = 4;
+
+    private final static long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private final static long FNV_PRIME = 0x100000001b3L;
 
     public static Response createFrom(DatagramPacket packet) {
-        Response response = new Response(packet);
+        return createFrom(ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength()));
+    }
+
+    /**
+     * Parse the datagram between the buffer's position and limit in place, without copying it.
+     * <p>
+     * Records are fully decoded before this method returns, so the caller may reuse the buffer afterwards.
+     *
+     * @param datagram buffer holding a received datagram, heap or direct
+     * @return the parsed Response
+     */
+    public static Response createFrom(ByteBuffer datagram) {
+        Response response = new Response(asMessage(datagram), false);
         response.parseRecords();
         return response;
     }
 
-    private Response() {
-        questions = new ArrayList<>();
-        records = new ArrayList<>();
+    /**
+     * Index the datagram between the buffer's position and limit without decoding any record data.
+     * <p>
+     * Only record offsets and types are read up front; names and records are decoded the first time they are
+     * requested. The returned Response reads from the given buffer, so it must not be used once the buffer is
+     * reused for another datagram.
+     *
+     * @param datagram buffer holding a received datagram, heap or direct
+     * @return the indexed Response
+     */
+    public static Response createLazyFrom(ByteBuffer datagram) {
+        Response response = new Response(asMessage(datagram), true);
+        response.parseRecords();
+        return response;
     }
 
-    private Response(DatagramPacket packet) {
-        this();
-        byte[] dstBuffer = buffer.array();
-        try {
-            System.arraycopy(packet.getData(), packet.getOffset(), dstBuffer, 0, packet.getLength());
-        } catch (Exception e) {
-            logger.error(e.getMessage());
-        }
-        buffer.limit(packet.getLength());
-        buffer.position(0);
+    private static ByteBuffer asMessage(ByteBuffer datagram) {
+        // Compression pointers are relative to the start of the message
+        return datagram.position() == 0 ? datagram : datagram.slice();
+    }
+
+    private Response(ByteBuffer message, boolean lazy) {
+        super(message);
+        this.lazy = lazy;
+        questions = new ArrayList<>();
     }
 
     private void parseRecords() {
-        parseHeader();
+        valid = parseHeader() && indexSections();
+        if (!valid) {
+            numRecords = 0;
+            return;
+        }
+        names = new NameTable();
         for (int i = 0; i < numQuestions; i++) {
-            Question question = Question.fromBuffer(buffer);
+            buffer.position(questionOffsets[i]);
+            Question question = Question.fromBuffer(buffer, names);
             questions.add(question);
         }
-        for (int i = 0; i < numAnswers; i++) {
-            Record record = Record.fromBuffer(buffer);
-            records.add(record);
-        }
-        for (int i = 0; i < numNameServers; i++) {
-            Record record = Record.fromBuffer(buffer);
-            records.add(record);
-        }
-        for (int i = 0; i < numAdditionalRecords; i++) {
-            Record record = Record.fromBuffer(buffer);
-            records.add(record);
+        if (!lazy) {
+            for (int i = 0; i < numRecords; i++) {
+                getRecord(i);
+            }
         }
     }
 
-    private void parseHeader() {
+    /**
+     * Header checks that need nothing but the fixed 12-byte header.
+     */
+    private boolean parseHeader() {
+        if (buffer.remaining() < HEADER_LENGTH) {
+            return false;
+        }
         readUnsignedShort(); // Skip over the ID
         int codes = readUnsignedShort();
         if ((codes & QR_MASK) != QR_MASK) {
-            // FIXME create a custom Exception for DNS errors
-            // throw new IllegalArgumentException("Packet is not a DNS response");
-            // logger.debug("Packet is not a DNS response");
-            return;
+            // Queries are routine on an mDNS segment, reject them silently
+            return false;
         }
         if ((codes & OPCODE_MASK) != 0) {
-            // throw new IllegalArgumentException("mDNS response packets can't have OPCODE values");
             logger.debug("mDNS response packets can't have OPCODE values");
-            return;
+            return false;
         }
         if ((codes & RCODE_MASK) != 0) {
-            // throw new IllegalArgumentException("mDNS response packets can't have RCODE values");
             logger.debug("mDNS response packets can't have RCODE values");
-            return;
+            return false;
         }
         numQuestions = readUnsignedShort();
         numAnswers = readUnsignedShort();
         numNameServers = readUnsignedShort();
         numAdditionalRecords = readUnsignedShort();
         // logger.debug("Questions={}, Answers={}, NameServers={}, AdditionalRecords={}", numQuestions, numAnswers, numNameServers, numAdditionalRecords);
+
+        long minimumLength = (long) numQuestions * MIN_QUESTION_LENGTH
+                + (long) (numAnswers + numNameServers + numAdditionalRecords) * MIN_RECORD_LENGTH;
+        if (minimumLength > buffer.remaining()) {
+            logger.debug("Header counts can't fit in a {} byte packet", buffer.limit());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Single bounds-checked pass over the question and record sections, indexing where each entry starts.
+     *
+     * @return false if the packet is truncated or holds anything but IN-class entries
+     */
+    private boolean indexSections() {
+        questionOffsets = new int[numQuestions];
+        for (int i = 0; i < numQuestions; i++) {
+            questionOffsets[i] = buffer.position();
+            if (!Record.skipName(buffer) || buffer.remaining() < QUESTION_FIXED_LENGTH) {
+                logger.debug("Question {} is truncated", i);
+                return false;
+            }
+            buffer.getShort(); // QTYPE
+            int qClass = buffer.getShort() & Question.QCLASS_MASK;
+            if (qClass != Question.QClass.IN.asUnsignedShort() && qClass != Question.QClass.ANY.asUnsignedShort()) {
+                return false;
+            }
+        }
+
+        int count = numAnswers + numNameServers + numAdditionalRecords;
+        recordOffsets = new int[count];
+        recordTypes = new int[count];
+        recordTtlOffsets = new int[count];
+        recordNames = new DnsName[count];
+        records = new Record[count];
+
+        for (int i = 0; i < count; i++) {
+            int offset = buffer.position();
+            if (!Record.skipName(buffer) || buffer.remaining() < RR_FIXED_LENGTH) {
+                logger.debug("Record {} is truncated", i);
+                return false;
+            }
+            int type = buffer.getShort() & Record.USHORT_MASK;
+            int rrClass = buffer.getShort() & Record.CLASS_MASK;
+            int ttlOffset = buffer.position();
+            if (buffer.getInt() == 0) {
+                hasGoodbye = true;
+            }
+            int rdLength = buffer.getShort() & Record.USHORT_MASK;
+            if (rdLength > buffer.remaining()) {
+                logger.debug("Record {} is truncated", i);
+                return false;
+            }
+            // The CLASS of an OPT pseudo-record holds the sender's UDP payload size instead
+            if (rrClass != Record.Class.IN.asUnsignedShort() && type != Record.Type.OPT.asUnsignedShort()) {
+                return false;
+            }
+            if (!Record.isValidLength(type, rdLength)) {
+                logger.debug("Record {} of type {} can't have {} bytes of data", i, type, rdLength);
+                return false;
+            }
+            recordOffsets[i] = offset;
+            recordTypes[i] = type;
+            recordTtlOffsets[i] = ttlOffset;
+            buffer.position(buffer.position() + rdLength);
+        }
+        numRecords = count;
+        return true;
+    }
+
+    /**
+     * Whether the packet passed validation: a well-formed, IN-class mDNS response. Invalid packets have no
+     * questions or records.
+     *
+     * @return true if the packet can be used
+     */
+    public boolean isValid() {
+        return valid;
+    }
+
+    /**
+     * Number of resource records in the answer, authority and additional sections.
+     *
+     * @return record count
+     */
+    public int getRecordCount() {
+        return numRecords;
+    }
+
+    /**
+     * Type of the record at the given index, read from the index without decoding the record.
+     *
+     * @param index record index, in packet order
+     * @return the record's type
+     */
+    public Record.Type getRecordType(int index) {
+        return Record.Type.fromInt(recordTypes[index]);
+    }
+
+    /**
+     * TTL of the record at the given index, read from the index without decoding the record.
+     *
+     * @param index record index, in packet order
+     * @return the record's TTL, in seconds
+     */
+    public long getRecordTTL(int index) {
+        return buffer.getInt(recordTtlOffsets[index]) & Record.UINT_MASK;
+    }
+
+    /**
+     * Whether any record has a zero TTL, i.e. the packet withdraws something.
+     *
+     * @return true if the packet holds a goodbye record
+     */
+    public boolean hasGoodbye() {
+        return hasGoodbye;
+    }
+
+    /**
+     * 64-bit FNV-1a hash of the packet, skipping the message ID and every record's TTL.
+     * <p>
+     * Repeated announcements and answers from the same responder differ only in those fields, so equal
+     * fingerprints identify a repeat without decoding it. Only meaningful for valid responses.
+     *
+     * @return the fingerprint
+     */
+    public long getFingerprint() {
+        long hash = FNV_OFFSET_BASIS;
+        int from = ID_LENGTH;
+        for (int i = 0; i <= numRecords; i++) {
+            int to = i < numRecords ? recordTtlOffsets[i] : buffer.limit();
+            for (int j = from; j < to; j++) {
+                hash = (hash ^ (buffer.get(j) & 0xFF)) * FNV_PRIME;
+            }
+            from = to + TTL_LENGTH;
+        }
+        return hash;
+    }
+
+    /**
+     * Name of the record at the given index, decoded on first access.
+     *
+     * @param index record index, in packet order
+     * @return the record's name
+     */
+    public DnsName getRecordName(int index) {
+        DnsName name = recordNames[index];
+        if (name == null) {
+            Record record = records[index];
+            if (record != null) {
+                name = record.getName();
+            } else {
+                buffer.position(recordOffsets[index]);
+                name = Record.readNameFromBuffer(buffer, names);
+            }
+            recordNames[index] = name;
+        }
+        return name;
+    }
+
+    /**
+     * Record at the given index, decoded on first access.
+     *
+     * @param index record index, in packet order
+     * @return the decoded record
+     */
+    public Record getRecord(int index) {
+        Record record = records[index];
+        if (record == null) {
+            buffer.position(recordOffsets[index]);
+            record = Record.fromBuffer(buffer, names);
+            records[index] = record;
+            recordNames[index] = record.getName();
+        }
+        return record;
     }
 
     public Set<Record> getRecords() {
-        return new HashSet<>(Collections.unmodifiableSet(new HashSet<>(records)));
+        Set<Record> set = new HashSet<>();
+        for (int i = 0; i < numRecords; i++) {
+            set.add(getRecord(i));
+        }
+        return set;
     }
 
     public String getUserVisibleName() {
-        Optional<PtrRecord> record = records.stream().filter(r -> r instanceof PtrRecord).map(r -> (PtrRecord) r).findAny();
-        if (record.isPresent()) {
-            return record.get().getUserVisibleName();
-        } else {
-            logger.debug("No PTR records: {}", records);
-            throw new IllegalStateException("Cannot call getUserVisibleName when no PTR record is available");
+        for (int i = 0; i < numRecords; i++) {
+            if (getRecordType(i) == Record.Type.PTR) {
+                return ((PtrRecord) getRecord(i)).getUserVisibleName();
+            }
         }
+        logger.debug("No PTR records: {}", getRecords());
+        throw new IllegalStateException("Cannot call getUserVisibleName when no PTR record is available");
     }
 
     public boolean answers(Set<Question> questions) {
-        return (records.stream().filter(r -> {
-            boolean match = false;
-            String name = r.getName();
+        for (int i = 0; i < numRecords; i++) {
+            DnsName name = getRecordName(i);
             for (Question q : questions) {
                 if (name.equals(q.getQName())) {
-                    match = true;
-                    break;
+                    return true;
                 }
             }
-            return match;
-        }).count() > 0);
+        }
+        return false;
     }
 
 
     @Override
     public String toString() {
+        List<Record> decoded = new ArrayList<>(numRecords);
+        for (int i = 0; i < numRecords; i++) {
+            decoded.add(getRecord(i));
+        }
         return "Response{" +
                 "questions=" + questions +
-                ", records=" + records +
+                ", records=" + decoded +
                 ", numQuestions=" + numQuestions +
                 ", numAnswers=" + numAnswers +
                 ", numNameServers=" + numNameServers +
@@ -25,14 +25,40 @@ public class SrvRecord extends Record {
     private final int priority;
     private final int weight;
     private final int port;
-    private final String target;
+    private final DnsName target;
 
-    public SrvRecord(ByteBuffer buffer, String name, Record.Class recordClass, long ttl) {
+    public SrvRecord(ByteBuffer buffer, DnsName name, Record.Class recordClass, long ttl) {
+        this(buffer, name, recordClass, ttl, null);
+    }
+
+    SrvRecord(ByteBuffer buffer, DnsName name, Record.Class recordClass, long ttl, NameTable names) {
         super(name, recordClass, ttl);
         priority = buffer.getShort() & USHORT_MASK;
         weight = buffer.getShort() & USHORT_MASK;
         port = buffer.getShort() & USHORT_MASK;
-        target = readNameFromBuffer(buffer);
+        target = readNameFromBuffer(buffer, names);
+    }
+
+    public SrvRecord(DnsName name, long ttl, boolean cacheFlush, int priority, int weight, int port, DnsName target) {
+        super(name, Class.IN, ttl, cacheFlush);
+        this.priority = priority;
+        this.weight = weight;
+        this.port = port;
+        this.target = target;
+    }
+
+    @Override
+    public int getType() {
+        return Type.SRV.asUnsignedShort();
+    }
+
+    @Override
+    protected void writeRData(ByteBuffer buffer, NameCompressor compressor) {
+        buffer.putShort((short) priority);
+        buffer.putShort((short) weight);
+        buffer.putShort((short) port);
+        // RFC 6762 section 18.14 allows compressing the target, unlike unicast DNS
+        writeName(buffer, target, compressor);
     }
 
     public int getPriority() {
@@ -47,7 +73,7 @@ public class SrvRecord extends Record {
         return port;
     }
 
-    public String getTarget() {
+    public DnsName getTarget() {
         return target;
     }
 
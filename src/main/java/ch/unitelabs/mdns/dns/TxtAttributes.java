@@ -0,0 +1,173 @@
+package ch.unitelabs.mdns.dns;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Read-only view of the key/value attributes held in a TXT record's rdata.
+ * <p>
+ * Only the raw rdata bytes are retained. {@link #get} and {@link #containsKey} scan them directly, comparing keys
+ * case-insensitively as RFC 6763 section 6.4 requires; iterating the map decodes every attribute on each call.
+ * The value is everything after the first '=', and an attribute without '=' maps to "". When a key appears more
+ * than once, the first occurrence wins.
+ */
+public final class TxtAttributes extends AbstractMap<String, String> {
+    public static final TxtAttributes EMPTY = new TxtAttributes(new byte[0]);
+
+    private final static int MAX_STRING_LENGTH = 255;
+
+    private final byte[] rdata;
+
+    /**
+     * Copy the rdata out of the buffer.
+     *
+     * @param buffer buffer positioned at the start of the rdata
+     * @param length length of the rdata, in bytes
+     */
+    public TxtAttributes(ByteBuffer buffer, int length) {
+        this(read(buffer, length));
+    }
+
+    private TxtAttributes(byte[] rdata) {
+        this.rdata = rdata;
+    }
+
+    /**
+     * Encode attributes as "key=value" strings, or "key" alone when the value is null.
+     *
+     * @param attributes attributes to encode; a TxtAttributes is returned as is
+     * @return the encoded attributes
+     */
+    public static TxtAttributes of(Map<String, String> attributes) {
+        if (attributes instanceof TxtAttributes) {
+            return (TxtAttributes) attributes;
+        }
+        ByteArrayOutputStream rdata = new ByteArrayOutputStream();
+        for (Entry<String, String> attribute : attributes.entrySet()) {
+            String entry = attribute.getValue() == null ? attribute.getKey() : attribute.getKey() + "=" + attribute.getValue();
+            byte[] bytes = entry.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > MAX_STRING_LENGTH) {
+                throw new IllegalArgumentException("Attribute '" + attribute.getKey() + "' is longer than " + MAX_STRING_LENGTH + " bytes");
+            }
+            rdata.write(bytes.length);
+            rdata.write(bytes, 0, bytes.length);
+        }
+        return new TxtAttributes(rdata.toByteArray());
+    }
+
+    private static byte[] read(ByteBuffer buffer, int length) {
+        byte[] rdata = new byte[length];
+        buffer.get(rdata);
+        return rdata;
+    }
+
+    /**
+     * Write the rdata; no attributes are written as a single empty string, as RFC 6763 section 6.1 requires.
+     *
+     * @param buffer buffer to write to
+     */
+    public void writeTo(ByteBuffer buffer) {
+        if (rdata.length == 0) {
+            buffer.put((byte) 0);
+        } else {
+            buffer.put(rdata);
+        }
+    }
+
+    /**
+     * @return the raw rdata: a sequence of length-prefixed strings
+     */
+    public ByteBuffer getRData() {
+        return ByteBuffer.wrap(rdata).asReadOnlyBuffer();
+    }
+
+    @Override
+    public String get(Object key) {
+        int offset = find(key);
+        if (offset < 0) {
+            return null;
+        }
+        int end = end(offset);
+        int separator = separator(offset, end);
+        return separator < end ? new String(rdata, separator + 1, end - separator - 1, StandardCharsets.UTF_8) : "";
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return find(key) >= 0;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (int offset = 0; offset < rdata.length; offset += 1 + (rdata[offset] & 0xFF)) {
+            if (keyLength(offset) > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+        Map<String, String> attributes = new LinkedHashMap<>();
+        ByteBuffer bytes = ByteBuffer.wrap(rdata);
+        for (int offset = 0; offset < rdata.length; offset += 1 + (rdata[offset] & 0xFF)) {
+            int keyLength = keyLength(offset);
+            if (keyLength == 0 || find(bytes, offset + 1, keyLength) != offset) {
+                continue;
+            }
+            String key = InternPool.TXT_KEYS.intern(bytes, offset + 1, keyLength);
+            attributes.put(key, get(key));
+        }
+        return Collections.unmodifiableMap(attributes).entrySet();
+    }
+
+    /**
+     * @return offset of the length byte of the first string whose key matches, or -1
+     */
+    private int find(Object key) {
+        if (!(key instanceof String)) {
+            return -1;
+        }
+        byte[] keyBytes = ((String) key).getBytes(StandardCharsets.UTF_8);
+        return keyBytes.length == 0 ? -1 : find(ByteBuffer.wrap(keyBytes), 0, keyBytes.length);
+    }
+
+    private int find(ByteBuffer key, int keyOffset, int keyLength) {
+        for (int offset = 0; offset < rdata.length; offset += 1 + (rdata[offset] & 0xFF)) {
+            if (keyLength(offset) != keyLength) {
+                continue;
+            }
+            int i = 0;
+            while (i < keyLength && DnsName.toLower(rdata[offset + 1 + i]) == DnsName.toLower(key.get(keyOffset + i))) {
+                i++;
+            }
+            if (i == keyLength) {
+                return offset;
+            }
+        }
+        return -1;
+    }
+
+    private int keyLength(int offset) {
+        return separator(offset, end(offset)) - offset - 1;
+    }
+
+    private int end(int offset) {
+        return Math.min(rdata.length, offset + 1 + (rdata[offset] & 0xFF));
+    }
+
+    private int separator(int offset, int end) {
+        int i = offset + 1;
+        while (i < end && rdata[i] != '=') {
+            i++;
+        }
+        return i;
+    }
+}
@@ -23,38 +23,41 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
 public class TxtRecord extends Record {
-    private Map<String, String> attributes;
+    private final TxtAttributes attributes;
 
     @SuppressWarnings("unused")
     private final static Logger logger = LoggerFactory.getLogger(TxtRecord.class);
 
-    public TxtRecord(ByteBuffer buffer, String name, Record.Class recordClass, long ttl, int length) {
+    public TxtRecord(ByteBuffer buffer, DnsName name, Record.Class recordClass, long ttl, int length) {
         super(name, recordClass, ttl);
-        List<String> strings = readStringsFromBuffer(buffer, length);
-        attributes = parseDataStrings(strings);
+        attributes = new TxtAttributes(buffer, length);
     }
 
-    private Map<String, String> parseDataStrings(List<String> strings) {
-        Map<String, String> pairs = new HashMap<>();
-        strings.stream().forEach(s -> {
-            String[] parts = s.split("=");
-            if (parts.length > 1) {
-                pairs.put(parts[0], parts[1]);
-            } else {
-                pairs.put(parts[0], "");
-            }
-        });
-        return pairs;
+    public TxtRecord(DnsName name, long ttl, boolean cacheFlush, Map<String, String> attributes) {
+        super(name, Class.IN, ttl, cacheFlush);
+        this.attributes = TxtAttributes.of(attributes);
     }
 
+    @Override
+    public int getType() {
+        return Type.TXT.asUnsignedShort();
+    }
+
+    @Override
+    protected void writeRData(ByteBuffer buffer, NameCompressor compressor) {
+        attributes.writeTo(buffer);
+    }
+
+    /**
+     * Get the record's attributes as a read-only view over the rdata bytes.
+     *
+     * @return the attributes
+     */
     public Map<String, String> getAttributes() {
-        return Collections.unmodifiableMap(attributes);
+        return attributes;
     }
 
     @Override
@@ -25,9 +25,49 @@ import java.nio.ByteBuffer;
  * Handle records that we don't care about for mDNS-SD.
  */
 public class UnknownRecord extends Record {
-    public UnknownRecord(ByteBuffer buffer, String name, Record.Class recordClass, long ttl, int length) {
+    private final int type;
+
+    public UnknownRecord(ByteBuffer buffer, DnsName name, Record.Class recordClass, long ttl, int length) {
+        this(buffer, name, Type.UNSUPPORTED.asUnsignedShort(), recordClass, ttl, length);
+    }
+
+    UnknownRecord(ByteBuffer buffer, DnsName name, int type, Record.Class recordClass, long ttl, int length) {
         super(name, recordClass, ttl);
-        byte[] toSkip = new byte[length];
-        buffer.get(toSkip);
+        this.type = type;
+        buffer.position(buffer.position() + length);
+    }
+
+    @Override
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * The rdata is skipped while decoding, without copying it: it may hold names compressed against the message it
+     * came in (NS, CNAME, MX...), so it could not be written elsewhere as is.
+     *
+     * @return false
+     */
+    @Override
+    public boolean canEncode() {
+        return false;
+    }
+
+    /**
+     * Encoders check {@link #canEncode()} first, there is no rdata to write.
+     */
+    @Override
+    protected void writeRData(ByteBuffer buffer, NameCompressor compressor) {
+        throw new IllegalStateException("Records of type " + type + " are decoded without their rdata");
+    }
+
+    @Override
+    public String toString() {
+        return "UnknownRecord{" +
+                "name='" + name + '\'' +
+                ", type=" + type +
+                ", recordClass=" + recordClass +
+                ", ttl=" + ttl +
+                '}';
     }
 }
@@ -0,0 +1,289 @@
+package ch.unitelabs.mdns.sd;
+
+import ch.unitelabs.mdns.dns.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records answered by the responder, indexed by owner name and then by type so a question is answered with two
+ * constant-time lookups.
+ * <p>
+ * Entries are immutable and replaced as a whole, so the responder thread reads them without locking while
+ * registrations change them. Every change bumps a generation number, which invalidates the encoded replies
+ * cached in the entries.
+ */
+final class AnswerIndex {
+    static final int QTYPE_ANY = 255;
+    private static final long[] NEVER_MULTICAST = new long[0];
+
+    private final ConcurrentHashMap<DnsName, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong generation = new AtomicLong();
+    private final ByteBuffer scratch = ByteBuffer.allocate(Message.MAX_LENGTH); // guarded by this
+
+    Entry get(DnsName name) {
+        return entries.get(name);
+    }
+
+    long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Measure a record's encoding, ready to be added to the index.
+     */
+    synchronized Answer answer(Record record) {
+        ByteBuffer identity = identity(record, scratch);
+        return new Answer(record, identity.capacity(), identity);
+    }
+
+    /**
+     * Encode a record as a key made of its name, type, class and rdata, ignoring the TTL and cache-flush bit, so
+     * that a querier's known answer can be matched with ours.
+     *
+     * @param scratch buffer to encode in, at least {@link Message#MAX_LENGTH} bytes
+     * @return a buffer to use as hash key, wrapping the uncompressed encoding, or null if the record can't be
+     * encoded, which makes it none of ours
+     */
+    static ByteBuffer identity(Record record, ByteBuffer scratch) {
+        if (!record.canEncode()) return null;
+        scratch.clear();
+        record.writeTo(scratch);
+        byte[] key = Arrays.copyOf(scratch.array(), scratch.position());
+        int classOffset = record.getName().getWireLength() + 2;
+        key[classOffset] &= 0x7F;
+        Arrays.fill(key, classOffset + 2, classOffset + 6, (byte) 0);
+        return ByteBuffer.wrap(key);
+    }
+
+    /**
+     * Replace every record of the given name and type.
+     *
+     * @param answers new records, all with this name and type; empty to remove them
+     */
+    synchronized void replace(DnsName name, int type, List<Answer> answers) {
+        Entry entry = entries.get(name);
+        List<Answer> kept = new ArrayList<>();
+        if (entry != null) {
+            for (Answer answer : entry.all) {
+                if (answer.record.getType() != type) kept.add(answer);
+            }
+        }
+        kept.addAll(answers);
+        publish(name, kept);
+    }
+
+    /**
+     * Add a PTR record to its name, replacing any pointing to the same target.
+     */
+    synchronized void addPointer(Answer ptr) {
+        DnsName name = ptr.record.getName();
+        List<Answer> answers = withoutPointer(name, ((PtrRecord) ptr.record).getPtrName());
+        answers.add(ptr);
+        publish(name, answers);
+    }
+
+    /**
+     * @return the number of PTR records left on name
+     */
+    synchronized int removePointer(DnsName name, DnsName ptrName) {
+        List<Answer> answers = withoutPointer(name, ptrName);
+        publish(name, answers);
+        int pointers = 0;
+        for (Answer answer : answers) {
+            if (answer.record instanceof PtrRecord) pointers++;
+        }
+        return pointers;
+    }
+
+    private List<Answer> withoutPointer(DnsName name, DnsName ptrName) {
+        Entry entry = entries.get(name);
+        List<Answer> answers = new ArrayList<>();
+        if (entry != null) {
+            for (Answer answer : entry.all) {
+                if (!(answer.record instanceof PtrRecord && ((PtrRecord) answer.record).getPtrName().equals(ptrName))) {
+                    answers.add(answer);
+                }
+            }
+        }
+        return answers;
+    }
+
+    private void publish(DnsName name, List<Answer> answers) {
+        if (answers.isEmpty()) {
+            entries.remove(name);
+        } else {
+            entries.put(name, new Entry(answers.toArray(new Answer[0])));
+        }
+        generation.incrementAndGet();
+    }
+
+    /**
+     * Append the records that RFC 6763 section 12 recommends sending along with an answer: an instance's SRV and
+     * TXT records for a PTR answer, and the target's addresses for an SRV record.
+     */
+    void addAdditionals(Answer answer, List<Answer> additionals) {
+        if (answer.record instanceof PtrRecord) {
+            Entry instance = entries.get(((PtrRecord) answer.record).getPtrName());
+            if (instance == null) return;
+            for (Answer srv : instance.get(Record.Type.SRV.asUnsignedShort())) {
+                addOnce(additionals, srv);
+                addAddresses((SrvRecord) srv.record, additionals);
+            }
+            for (Answer txt : instance.get(Record.Type.TXT.asUnsignedShort())) {
+                addOnce(additionals, txt);
+            }
+        } else if (answer.record instanceof SrvRecord) {
+            addAddresses((SrvRecord) answer.record, additionals);
+        }
+    }
+
+    private void addAddresses(SrvRecord srv, List<Answer> additionals) {
+        Entry host = entries.get(srv.getTarget());
+        if (host == null) return;
+        for (Answer a : host.get(Record.Type.A.asUnsignedShort())) {
+            addOnce(additionals, a);
+        }
+        for (Answer aaaa : host.get(Record.Type.AAAA.asUnsignedShort())) {
+            addOnce(additionals, aaaa);
+        }
+    }
+
+    static void addOnce(List<Answer> list, Answer answer) {
+        for (int i = 0; i < list.size(); i++) {
+            if (list.get(i) == answer) return;
+        }
+        list.add(answer);
+    }
+
+    /**
+     * A record together with the length of its uncompressed encoding, an upper bound on the space it takes in a
+     * packet.
+     */
+    static final class Answer {
+        final Record record;
+        final int length;
+        final ByteBuffer identity;
+        // Last time the record was multicast on each route [ms], by route id, for the once-per-second limit, which
+        // RFC 6762 section 6 applies per interface; a lost race only costs a resend
+        private volatile long[] lastMulticast = NEVER_MULTICAST;
+
+        Answer(Record record, int length, ByteBuffer identity) {
+            this.record = record;
+            this.length = length;
+            this.identity = identity;
+        }
+
+        /**
+         * @param route route id, see {@link #multicastOn(int, long)}
+         * @return last time the record was multicast on the route [ms], 0 if never
+         */
+        long lastMulticastOn(int route) {
+            long[] times = lastMulticast;
+            return route < times.length ? times[route] : 0;
+        }
+
+        /**
+         * Record that the record was multicast on a route.
+         *
+         * @param route small, dense id of the interface and address family the record was sent on
+         * @param now   current time [ms]
+         */
+        void multicastOn(int route, long now) {
+            long[] times = lastMulticast;
+            if (route >= times.length) times = Arrays.copyOf(times, route + 1);
+            times[route] = now;
+            lastMulticast = times;
+        }
+    }
+
+    /**
+     * Records of one owner name, indexed by type.
+     */
+    static final class Entry {
+        private static final Answer[] NONE = new Answer[0];
+        private static final int SLOTS = 7;
+        private static final int ANY_SLOT = SLOTS - 1;
+
+        private final Answer[] all;
+        private final Answer[][] byType = new Answer[SLOTS][];
+
+        // Encoded multicast replies per slot and the generation they were built for, only used by the responder thread
+        private final byte[][][] packets = new byte[SLOTS][][];
+        private final long[] packetsGeneration = new long[SLOTS];
+
+        Entry(Answer[] all) {
+            this.all = all;
+            int[] slots = new int[all.length];
+            int[] counts = new int[SLOTS];
+            for (int i = 0; i < all.length; i++) {
+                slots[i] = slot(all[i].record.getType());
+                if (slots[i] >= 0) counts[slots[i]]++;
+            }
+            for (int slot = 0; slot < ANY_SLOT; slot++) {
+                byType[slot] = counts[slot] == 0 ? NONE : new Answer[counts[slot]];
+                counts[slot] = 0;
+            }
+            for (int i = 0; i < all.length; i++) {
+                if (slots[i] >= 0) byType[slots[i]][counts[slots[i]]++] = all[i];
+            }
+            byType[ANY_SLOT] = all;
+        }
+
+        /**
+         * @param type 16-bit QTYPE, 255 for any type
+         * @return the matching answers, possibly none
+         */
+        Answer[] get(int type) {
+            int slot = slot(type);
+            return slot < 0 ? NONE : byType[slot];
+        }
+
+        /**
+         * @return the cached replies to a multicast question for this name and type, or null if stale
+         */
+        byte[][] getPackets(int type, long generation) {
+            int slot = slot(type);
+            return slot >= 0 && packetsGeneration[slot] == generation ? packets[slot] : null;
+        }
+
+        void putPackets(int type, long generation, byte[][] encoded) {
+            int slot = slot(type);
+            if (slot < 0) return;
+            packets[slot] = encoded;
+            packetsGeneration[slot] = generation;
+        }
+
+        private static int slot(int type) {
+            switch (Record.Type.fromInt(type)) {
+                case PTR:
+                    return 0;
+                case SRV:
+                    return 1;
+                case TXT:
+                    return 2;
+                case A:
+                    return 3;
+                case AAAA:
+                    return 4;
+                case NSEC:
+                    return 5;
+                default:
+                    return type == QTYPE_ANY ? ANY_SLOT : -1;
+            }
+        }
+
+        @Override
+        public String toString() {
+            List<Record> records = new ArrayList<>();
+            for (Answer answer : all) {
+                records.add(answer.record);
+            }
+            return "Entry" + records;
+        }
+    }
+}
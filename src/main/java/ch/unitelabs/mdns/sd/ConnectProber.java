@@ -0,0 +1,190 @@
+package ch.unitelabs.mdns.sd;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that instances accept TCP connections, with non-blocking connects multiplexed by one {@link Selector}.
+ * <p>
+ * Up to a bounded number of connects are in flight at once, so sweeping that many instances takes at most one
+ * timeout, however many are unreachable. Each probe's connect round-trip time is recorded on its instance. Not
+ * thread-safe, the heartbeat thread owns it.
+ */
+final class ConnectProber {
+    private final static Logger logger = LoggerFactory.getLogger(ConnectProber.class);
+
+    private static final int START_BATCH = 64; // connects started between two looks at the selector
+
+    private final int maxInFlight;
+    private final long timeoutNanos;
+
+    /**
+     * @param maxInFlight   most connects pending at once, each holding a socket
+     * @param timeoutMillis time an instance gets to accept the connection [ms]
+     */
+    ConnectProber(int maxInFlight, long timeoutMillis) {
+        this.maxInFlight = maxInFlight;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    /**
+     * Probe every instance once and record the outcome with {@link Instance#setConnectRtt(long)}.
+     *
+     * @param instances instances to probe
+     * @param offline   receives the instances that refused, timed out or could not be reached
+     * @throws IOException if the selector fails, or no socket can be opened; pending probes are closed
+     */
+    void probe(List<Instance> instances, List<Instance> offline) throws IOException {
+        ArrayDeque<Instance> waiting = new ArrayDeque<>(instances);
+        // Probes start in order and share the timeout, so the oldest is always the next to time out; finished ones
+        // are dropped once they reach the head
+        ArrayDeque<Probe> started = new ArrayDeque<>();
+        int pending = 0;
+        try (Selector selector = Selector.open()) {
+            try {
+                while (!waiting.isEmpty() || pending > 0) {
+                    boolean exhausted = false;
+                    // Started in batches, so connections are seen soon after they are made and their RTT holds
+                    for (int i = 0; i < START_BATCH && !waiting.isEmpty() && pending < maxInFlight; i++) {
+                        SocketChannel channel;
+                        try {
+                            channel = SocketChannel.open();
+                        } catch (IOException e) {
+                            // Out of sockets: wait for pending probes to free some, unless none would
+                            if (pending == 0) throw e;
+                            exhausted = true;
+                            break;
+                        }
+                        Probe probe = new Probe(waiting.poll(), channel);
+                        if (start(probe, selector)) {
+                            started.add(probe);
+                            pending++;
+                        } else {
+                            record(probe, offline);
+                        }
+                    }
+
+                    while (!started.isEmpty() && started.peek().done) {
+                        started.poll();
+                    }
+                    if (pending == 0) continue;
+
+                    long wait = started.peek().deadline - System.nanoTime();
+                    boolean canStart = !exhausted && !waiting.isEmpty() && pending < maxInFlight;
+                    if (wait > 0 && !canStart) {
+                        selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+                    } else {
+                        selector.selectNow();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Probe probe = (Probe) key.attachment();
+                        if (finish(probe)) {
+                            record(probe, offline);
+                            pending--;
+                        }
+                    }
+
+                    // Connections made in time were collected above, whatever is still pending has timed out
+                    long now = System.nanoTime();
+                    while (!started.isEmpty() && (started.peek().done || started.peek().deadline - now <= 0)) {
+                        Probe probe = started.poll();
+                        if (!probe.done) {
+                            close(probe);
+                            record(probe, offline);
+                            pending--;
+                        }
+                    }
+                }
+            } finally {
+                // Only left pending if probing failed, their sockets must not outlive it
+                for (Probe probe : started) {
+                    if (!probe.done) close(probe);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if the connect is pending and registered with the selector
+     */
+    private boolean start(Probe probe, Selector selector) {
+        try {
+            probe.channel.configureBlocking(false);
+            InetSocketAddress address = new InetSocketAddress(probe.instance.host, probe.instance.getPort());
+            if (address.isUnresolved()) throw new IOException("Unresolved host " + probe.instance.host);
+            probe.start = System.nanoTime();
+            probe.deadline = probe.start + timeoutNanos;
+            if (probe.channel.connect(address)) {
+                probe.rtt = System.nanoTime() - probe.start;
+                close(probe);
+                return false;
+            }
+            probe.channel.register(selector, SelectionKey.OP_CONNECT, probe);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            logger.debug("Could not probe {}: {}", probe.instance.getName(), e.getMessage());
+            close(probe);
+            return false;
+        }
+    }
+
+    /**
+     * @return true if the probe is over, connected or not
+     */
+    private boolean finish(Probe probe) {
+        try {
+            if (!probe.channel.finishConnect()) return false;
+            probe.rtt = System.nanoTime() - probe.start;
+        } catch (IOException e) {
+            // Refused or unreachable
+            logger.debug("{} is unreachable: {}", probe.instance.getName(), e.getMessage());
+        }
+        close(probe);
+        return true;
+    }
+
+    private static void close(Probe probe) {
+        probe.done = true;
+        try {
+            // Also cancels the key, which the selector drops on its next select
+            probe.channel.close();
+        } catch (IOException e) {
+            logger.debug(e.getMessage());
+        }
+    }
+
+    private static void record(Probe probe, List<Instance> offline) {
+        if (probe.rtt >= 0) {
+            probe.instance.setConnectRtt(TimeUnit.NANOSECONDS.toMicros(probe.rtt));
+        } else {
+            offline.add(probe.instance);
+        }
+    }
+
+    private static final class Probe {
+        final Instance instance;
+        final SocketChannel channel;
+        long start;
+        long deadline;
+        long rtt = -1; // [ns], -1 until connected
+        boolean done;
+
+        Probe(Instance instance, SocketChannel channel) {
+            this.instance = instance;
+            this.channel = channel;
+        }
+    }
+}
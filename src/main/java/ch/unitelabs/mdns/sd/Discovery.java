@@ -6,7 +6,17 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
 
 
 public class Discovery {
@@ -14,122 +24,594 @@ public class Discovery {
     public InstancesCache instancesCache = new InstancesCache();
 
     private int port = 5353;
-    byte[] buffer = new byte[65509];
+    ByteBuffer buffer; // borrowed from the pool while the receiver runs, takes datagrams dropped when the ring is full
     private InetAddress ia, ia1, ia2;
     private static String NAME = "_tcp.";
-    private static final String MDNS_IP4_ADDRESS = "224.0.0.251";
-    private static final String MDNS_IP6_ADDRESS = "FF02::FB";
+    private final DnsName browsedName;
+    private static final String MDNS_IP4_ADDRESS = MulticastChannels.MDNS_IP4_ADDRESS;
+    private static final String MDNS_IP6_ADDRESS = MulticastChannels.MDNS_IP6_ADDRESS;
+
+    private final AtomicLong packetsReceived = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong packetsRejected = new AtomicLong();
+    private final AtomicLong packetsDeduplicated = new AtomicLong();
+    private final AtomicLong packetsDropped = new AtomicLong();
+    private final AtomicLong packetsOversize = new AtomicLong();
+    private final AtomicLong changesSkipped = new AtomicLong();
+    private final AtomicLong refreshQueriesSent = new AtomicLong();
+
+    private static final long DEDUPE_WINDOW = 5000; // [ms]
+    private final PacketFingerprints fingerprints = new PacketFingerprints(DEDUPE_WINDOW);
+    private volatile double packetsPerSecond;
+    private volatile double bytesPerSecond;
+
+    private static final int RING_CAPACITY = 256; // datagrams between the receiver and the parsers
+    private static final int DEFAULT_PARSERS = Math.min(4, Runtime.getRuntime().availableProcessors());
+    private final PacketRing ring = new PacketRing(RING_CAPACITY);
+    private final int parserCount;
+    private boolean parsersStarted; // guarded by this
+    private final Shard[] shards;
+    private volatile PacketReceiver packetReceiver; // the running receiver, whose channels refresh queries go out on
+    private final QueryPacker refreshPacker = new QueryPacker(); // only used by the cache's expiry thread
 
-    public class PacketReceiverHeartbeatAgent implements Runnable {
-        private int SAMPLING_PERIOD = 1000;
-        private int packetsReceiverHeartBeat = 0;
-        private boolean active = true;
-        private boolean packetReady = true;
-        private Thread heartBeatThread;
-
-        MulticastSocket ms;
+    /**
+     * Receives mDNS datagrams on non-blocking IPv4 and IPv6 channels multiplexed by a single {@link Selector}.
+     * <p>
+     * Every readable channel is drained until the kernel queue is empty, straight into the {@link PacketRing}
+     * that the parser workers consume, so receiving is never held up by parsing.
+     */
+    public class PacketReceiver implements Runnable {
+        private static final int SELECT_TIMEOUT = 1000; // [ms], also the throughput sampling period
+        private volatile boolean active = true;
+        private Thread receiverThread;
+        private Selector selector;
+        // Each channel with its group's address; read by the expiry thread when it sends refresh queries
+        private final Map<DatagramChannel, InetSocketAddress> channels = new ConcurrentHashMap<>();
+
+        private long sampleStart;
+        private long samplePackets;
+        private long sampleBytes;
 
         /**
-         * Starts the PacketReceiverHeartbeatAgent asynchronously
+         * Starts the PacketReceiver asynchronously
          */
         public void start() {
-            heartBeatThread = new Thread(this, "Discovery_Heartbeat");
+            startParsers();
+            packetReceiver = this;
+            receiverThread = new Thread(this, "Discovery_PacketReceiver");
             //terminate the thread with the VM.
-            heartBeatThread.setDaemon(true);
-            heartBeatThread.start();
+            receiverThread.setDaemon(true);
+            receiverThread.start();
         }
 
-        void setupPackageReceiver() throws IOException {
-            logger.info("Packet Receiver setup");
-
-            // Create a socket to listen on the port.
-            ms = new MulticastSocket(port);
+        /**
+         * Stops the receive loop and closes its channels.
+         */
+        public void stop() {
+            active = false;
+            if (selector != null) selector.wakeup();
+        }
 
+        void setupPacketReceiver() throws IOException {
+            logger.info("Packet Receiver setup");
+            selector = Selector.open();
+            if (buffer == null) buffer = BufferPool.DIRECT.acquire();
+            if (ia1 == null) ia1 = InetAddress.getByName(MDNS_IP4_ADDRESS);
+            if (ia2 == null) ia2 = InetAddress.getByName(MDNS_IP6_ADDRESS);
 
-            // Join Multicast Socket to Multicast Addresses IPv4 and IPv6
-            if (ia1 != null) ms.joinGroup(ia1);
-            if (ia2 != null) ms.joinGroup(ia2);
+            // Join Multicast Addresses IPv4 and IPv6, each on its own channel
+            if (ia1 != null) openChannel(StandardProtocolFamily.INET, ia1);
+            if (ia2 != null) openChannel(StandardProtocolFamily.INET6, ia2);
 
+            if (channels.isEmpty()) throw new IOException("No multicast group could be joined");
             if (ia == null) assignInterfaceFromName();
-
-            packetReady = true;
+            askInitialQuestion();
         }
 
-        public void run(){
-
-            while(active) {
-                if(Thread.interrupted()) {
-                    //to quit from the middle of the loop
-                    logger.info("Thread.interrupted()");
-                    active = false;
-                    return;
+        /**
+         * The first lookup asks for unicast replies (RFC 6762 section 5.4), sent from the receiving channels so
+         * the replies arrive here while other hosts are spared parsing them.
+         */
+        private void askInitialQuestion() {
+            Question question = new Question(Service.fromName(NAME), Domain.LOCAL, true);
+            for (Map.Entry<DatagramChannel, InetSocketAddress> channel : channels.entrySet()) {
+                try {
+                    question.askOn(channel.getKey(), channel.getValue());
+                } catch (IOException e) {
+                    logger.error("Could not send initial query: {}", e.getMessage());
                 }
+            }
+        }
 
-                // logger.info("packetsReceiverHeartBeat: {} cache size: {} packetReady: " + packetReady, packetsReceiverHeartBeat, instancesCache.getCache().size());
+        private void openChannel(ProtocolFamily family, InetAddress group) {
+            try {
+                channels.put(MulticastChannels.open(selector, family, group, port), new InetSocketAddress(group, port));
+            } catch (IOException e) {
+                logger.error("Could not listen for {}: {}", group, e.getMessage());
+            }
+        }
 
-                if (packetReady && ia != null) {
+        public void run() {
+            while (active && selector == null) {
+                try {
+                    setupPacketReceiver();
+                } catch (IOException e) {
+                    logger.error("Packet Receiver setup failed: {}", e.getMessage());
+                    close();
                     try {
+                        Thread.sleep(SELECT_TIMEOUT);
+                    } catch (InterruptedException ie) {
+                        logger.info("[PacketReceiver#run] was interrupted");
+                        return;
+                    }
+                }
+            }
 
-                        // Create a DatagramPacket packet to receive data into the buffer
-                        DatagramPacket packet = new DatagramPacket(buffer, buffer.length, ia, port);
-
-                        // Wait to receive a datagram
-                        if (ms != null) ms.receive(packet);
-
-
-                        Response response = Response.createFrom(packet);
-                        logger.info(response.toString());
-
-                        boolean found = false;
-                        PtrRecord ptr = null;
-                        Instance instance;
-
-                        for (Record record : response.getRecords()) {
-                            if (record instanceof PtrRecord) {
-                                ptr = ((PtrRecord) record);
-                            }
-                            if (record.getName().contains(NAME) && !record.getName().equals(NAME + "local.")) {
-                                found = true;
+            sampleStart = System.nanoTime();
+            while (active) {
+                if (Thread.interrupted()) {
+                    //to quit from the middle of the loop
+                    logger.info("Thread.interrupted()");
+                    break;
+                }
+                try {
+                    if (selector.select(SELECT_TIMEOUT) > 0) {
+                        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                        while (keys.hasNext()) {
+                            SelectionKey key = keys.next();
+                            keys.remove();
+                            if (key.isValid() && key.isReadable()) {
+                                drain((DatagramChannel) key.channel());
                             }
                         }
+                    }
+                } catch (IOException e) {
+                    logger.error("[PacketReceiver#run] select failed: {}", e.getMessage());
+                }
+                sampleThroughput();
+            }
+            close();
+        }
 
-                        if (found) {
-                            if (ptr != null) {
-                                instance = Instance.createFromRecords(ptr, response.getRecords());
-                                instance.host = packet.getAddress().getHostAddress();
-                                if (instance.ttl > 0) instancesCache.addInstance(instance);
-                                else instancesCache.removeInstance(instance.getName());
-                            }
-                        }
+        /**
+         * Read every datagram currently queued on the channel into the ring.
+         */
+        private void drain(DatagramChannel channel) throws IOException {
+            while (true) {
+                // With every slot busy the datagram is still read, so the channel doesn't stay readable, then dropped
+                ByteBuffer slot = ring.claim();
+                ByteBuffer target = slot != null ? slot : buffer;
+                if (slot == null) buffer.clear();
+                SocketAddress source = channel.receive(target);
+                if (source == null) return;
+                samplePackets++;
+                sampleBytes += target.position();
+                if (slot == null) {
+                    packetsDropped.incrementAndGet();
+                } else if (slot.position() > Message.MAX_LENGTH) {
+                    // Over the RFC 6762 cap and cut to the slot by the channel, not worth parsing. The slot is
+                    // left unpublished and received into again.
+                    packetsOversize.incrementAndGet();
+                } else {
+                    ring.publish((InetSocketAddress) source);
+                }
+            }
+        }
 
-                        // Reset the length of the packet before reusing it.
-                        packet.setLength(buffer.length);
+        private void sampleThroughput() {
+            long now = System.nanoTime();
+            long elapsed = now - sampleStart;
+            if (elapsed < TimeUnit.MILLISECONDS.toNanos(SELECT_TIMEOUT)) return;
+
+            packetsReceived.addAndGet(samplePackets);
+            bytesReceived.addAndGet(sampleBytes);
+            packetsPerSecond = samplePackets * 1e9 / elapsed;
+            bytesPerSecond = sampleBytes * 1e9 / elapsed;
+            samplePackets = 0;
+            sampleBytes = 0;
+            sampleStart = now;
+        }
 
-                    } catch (IOException e) {
-                        packetReady = false;
-                    }
-                } else {
+        /**
+         * Multicast packets out of every multicast-capable interface that is up, on each channel's group.
+         */
+        void multicastOnEachInterface(byte[][] packets) throws IOException {
+            MulticastChannels.Links links = MulticastChannels.Links.read();
+            for (NetworkInterface networkInterface : links.getOutgoing()) {
+                for (Map.Entry<DatagramChannel, InetSocketAddress> channel : channels.entrySet()) {
+                    if (!links.canReach(networkInterface, channel.getValue().getAddress())) continue;
                     try {
-                        setupPackageReceiver();
-                        packetReady = true;
+                        for (byte[] packet : packets) {
+                            MulticastChannels.send(channel.getKey(), networkInterface, ByteBuffer.wrap(packet),
+                                    channel.getValue());
+                        }
                     } catch (IOException e) {
-                        packetReady = false;
+                        // e.g. the interface went down since it was listed
+                        logger.debug("Could not send on {} to {}: {}", networkInterface.getName(), channel.getValue(),
+                                e.getMessage());
                     }
                 }
+            }
+        }
+
+        private void close() {
+            for (DatagramChannel channel : channels.keySet()) {
+                MulticastChannels.closeQuietly(channel);
+            }
+            channels.clear();
+            BufferPool.DIRECT.release(buffer);
+            buffer = null;
+            if (selector != null) {
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    logger.debug(e.getMessage());
+                }
+                selector = null;
+            }
+        }
+    }
+
+    /**
+     * Start the parser workers that consume the ring, once per Discovery.
+     */
+    synchronized void startParsers() {
+        if (parsersStarted) return;
+        parsersStarted = true;
+        for (int i = 0; i < parserCount; i++) {
+            Thread parserThread = new Thread(new Parser(), "Discovery_Parser-" + i);
+            //terminate the thread with the VM.
+            parserThread.setDaemon(true);
+            parserThread.start();
+        }
+    }
 
+    /**
+     * Decodes datagrams taken from the ring and hands the resulting cache changes to their shard.
+     */
+    private class Parser implements Runnable {
+        @Override
+        public void run() {
+            while (true) {
+                PacketRing.Slot slot;
                 try {
-                    Thread.sleep(SAMPLING_PERIOD);
+                    slot = ring.take();
                 } catch (InterruptedException e) {
-                    logger.info("[PacketReceiverHeartbeatAgent#run] was interrupted");
-                    active = false;
+                    logger.info("[Parser#run] was interrupted");
+                    return;
+                }
+                try {
+                    handlePacket(slot.buffer, slot.source, slot.sequence);
+                } catch (RuntimeException e) {
+                    logger.debug("Could not handle packet from {}: {}", slot.source, e.getMessage());
+                } finally {
+                    ring.release(slot);
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies the cache changes of the instances whose names hash to it, on a single writer thread. Parsers may
+     * finish packets out of order, so a change older than the last one applied to the same instance is skipped.
+     * <p>
+     * At most one change waits per instance, the latest: a newer one replaces it, so the writer's queue never
+     * holds more than one task per instance and nothing needs dropping when it falls behind. An add or remove is
+     * never replaced by a TTL refresh, which would lose it.
+     */
+    private final class Shard {
+        private static final int MAX_TRACKED = 4096; // instances whose last change is remembered, least recent go
+
+        private final ExecutorService writer;
+        private final ConcurrentHashMap<String, Change> waiting = new ConcurrentHashMap<>();
+        // Receive sequence of the last change applied per instance, only used by the writer thread
+        private final Map<String, Long> applied = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > MAX_TRACKED;
+            }
+        };
+
+        Shard(int index) {
+            writer = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "Discovery_Shard-" + index);
+                //terminate the thread with the VM.
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        /**
+         * Queue an add or a remove, replacing any refresh waiting for the instance.
+         *
+         * @param change cache change, returning false if it did not apply and must not count as the latest
+         */
+        void apply(String instanceName, long sequence, BooleanSupplier change) {
+            queue(instanceName, new Change(sequence, change, false));
+        }
+
+        /**
+         * Queue a TTL refresh, skipped if an add or remove is waiting for the instance: that carries a TTL too.
+         *
+         * @param change cache change, returning false if it did not apply and must not count as the latest
+         */
+        void refresh(String instanceName, long sequence, BooleanSupplier change) {
+            queue(instanceName, new Change(sequence, change, true));
+        }
+
+        private void queue(String instanceName, Change change) {
+            while (true) {
+                Change current = waiting.putIfAbsent(instanceName, change);
+                if (current == null) {
+                    writer.execute(() -> write(instanceName));
+                    return;
+                }
+                boolean replaces = current.refresh == change.refresh
+                        ? change.sequence > current.sequence
+                        : current.refresh;
+                if (!replaces || waiting.replace(instanceName, current, change)) {
+                    // Either way one of the two changes is never applied
+                    changesSkipped.incrementAndGet();
+                    return;
                 }
-                packetsReceiverHeartBeat++;
             }
         }
+
+        private void write(String instanceName) {
+            Change change = waiting.remove(instanceName);
+            if (change == null) return;
+            Long last = applied.get(instanceName);
+            if (last != null && last >= change.sequence) {
+                changesSkipped.incrementAndGet();
+                return;
+            }
+            if (change.change.getAsBoolean()) applied.put(instanceName, change.sequence);
+        }
+    }
+
+    private static final class Change {
+        final long sequence;
+        final BooleanSupplier change;
+        final boolean refresh;
+
+        Change(long sequence, BooleanSupplier change, boolean refresh) {
+            this.sequence = sequence;
+            this.change = change;
+            this.refresh = refresh;
+        }
+    }
+
+    /**
+     * Ask for the SRV records of instances whose TTL is running out, in one query per interface (RFC 6762
+     * section 5.2). Answers come back to the receiver like any other response and refresh the instances.
+     */
+    void refresh(List<Instance> due) {
+        PacketReceiver receiver = packetReceiver;
+        if (receiver == null) return;
+        List<Question> questions = new ArrayList<>(due.size());
+        for (Instance instance : due) {
+            if (instance.pointer == null) continue;
+            questions.add(new Question(instance.pointer.getPtrName(), Question.QType.SRV, Question.QClass.IN));
+        }
+        if (questions.isEmpty()) return;
+        try {
+            receiver.multicastOnEachInterface(refreshPacker.pack(questions, Collections.<Record>emptyList(),
+                    MulticastChannels.maxPayload()));
+            refreshQueriesSent.incrementAndGet();
+            logger.debug("Asked to refresh {} instances", questions.size());
+        } catch (IOException e) {
+            logger.error("Could not send refresh query: {}", e.getMessage());
+        }
+    }
+
+    private Shard shardOf(String instanceName) {
+        int hash = instanceName.hashCode();
+        return shards[((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % shards.length];
+    }
+
+    /**
+     * Decode a datagram and queue the cache change it carries on its instance's shard.
+     *
+     * @param sequence receive order of the datagram, which the shard applies changes in
+     */
+    void handlePacket(ByteBuffer data, InetSocketAddress source, long sequence) {
+        // Only the record index is built here; record data is decoded once we know the packet is relevant
+        Response response = Response.createLazyFrom(data);
+        if (!response.isValid()) {
+            packetsRejected.incrementAndGet();
+            return;
+        }
+
+        // Repeats of an already decoded packet only refresh the TTL; goodbyes always take the full path
+        long fingerprint = 0;
+        long now = System.currentTimeMillis();
+        if (!response.hasGoodbye()) {
+            fingerprint = response.getFingerprint();
+            PacketFingerprints.Entry seen = fingerprints.find(fingerprint, now);
+            if (seen != null && instancesCache.checkInstance(seen.instanceName)) {
+                long ttl = response.getRecordTTL(seen.ttlIndex);
+                shardOf(seen.instanceName).refresh(seen.instanceName, sequence,
+                        () -> instancesCache.refresh(seen.instanceName, ttl));
+                packetsDeduplicated.incrementAndGet();
+                return;
+            }
+        }
+        logger.debug("{}", response);
+
+        // Announcements batch many instances into one packet, each becoming its own change
+        Set<Record> records = null;
+        String single = null;
+        int instances = 0;
+        int ttlIndex = -1;
+        for (int i = 0; i < response.getRecordCount(); i++) {
+            if (response.getRecordType(i) != Record.Type.PTR || !response.getRecordName(i).endsWith(browsedName)) {
+                continue;
+            }
+            if (records == null) records = response.getRecords();
+            PtrRecord ptr = (PtrRecord) response.getRecord(i);
+            // A goodbye may come as a lone PTR record, which is enough to remove the instance
+            Instance instance = ptr.getTTL() > 0 ? Instance.createFromRecords(ptr, records) : null;
+            if (instance == null && ptr.getTTL() > 0) continue;
+            String instanceName = instance != null ? instance.getName() : ptr.getUserVisibleName();
+            if (instance != null && instance.ttl > 0) {
+                instance.host = source.getAddress().getHostAddress();
+                shardOf(instanceName).apply(instanceName, sequence, () -> {
+                    instancesCache.addInstance(instance);
+                    return true;
+                });
+            } else {
+                shardOf(instanceName).apply(instanceName, sequence, () -> {
+                    instancesCache.removeInstance(instanceName);
+                    return true;
+                });
+            }
+            single = instanceName;
+            ttlIndex = srvIndex(response, ptr.getPtrName());
+            instances++;
+        }
+
+        // Answers to refresh queries carry the SRV record alone
+        for (int i = 0; instances == 0 && i < response.getRecordCount(); i++) {
+            if (response.getRecordType(i) != Record.Type.SRV || !response.getRecordName(i).isSubdomainOf(browsedName)) {
+                continue;
+            }
+            String instanceName = response.getRecordName(i).getLabel(0);
+            long ttl = response.getRecordTTL(i);
+            if (ttl > 0) {
+                shardOf(instanceName).refresh(instanceName, sequence, () -> instancesCache.refresh(instanceName, ttl));
+            } else {
+                shardOf(instanceName).apply(instanceName, sequence, () -> {
+                    instancesCache.removeInstance(instanceName);
+                    return true;
+                });
+            }
+        }
+
+        // Only remembered once the change is queued, so a repeat's refresh lands behind it on the shard. A repeat
+        // of a multi-instance packet is decoded in full, as the fingerprint can only stand for one instance.
+        if (instances == 1 && !response.hasGoodbye()) {
+            fingerprints.put(fingerprint, single, ttlIndex, now);
+        }
+    }
+
+    /**
+     * Total number of datagrams received, updated once per sampling period.
+     *
+     * @return packet count
+     */
+    public long getPacketsReceived() {
+        return packetsReceived.get();
+    }
+
+    private static int srvIndex(Response response, DnsName instanceName) {
+        for (int i = 0; i < response.getRecordCount(); i++) {
+            if (response.getRecordType(i) == Record.Type.SRV && response.getRecordName(i).equals(instanceName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Number of datagrams dropped because they were queries, not mDNS, or malformed.
+     *
+     * @return packet count
+     */
+    public long getPacketsRejected() {
+        return packetsRejected.get();
+    }
+
+    /**
+     * Number of datagrams recognised as repeats of a recently decoded packet, which only refreshed a TTL.
+     *
+     * @return packet count
+     */
+    public long getPacketsDeduplicated() {
+        return packetsDeduplicated.get();
+    }
+
+    /**
+     * Number of datagrams dropped because every ring slot was still waiting to be parsed.
+     *
+     * @return packet count
+     */
+    public long getPacketsDropped() {
+        return packetsDropped.get();
+    }
+
+    /**
+     * Number of datagrams dropped because they were larger than the {@link Message#MAX_LENGTH} bytes RFC 6762
+     * allows an mDNS message.
+     *
+     * @return packet count
+     */
+    public long getPacketsOversize() {
+        return packetsOversize.get();
+    }
+
+    /**
+     * Number of cache changes skipped because a later change for the same instance was applied or superseded them.
+     *
+     * @return change count
+     */
+    public long getChangesSkipped() {
+        return changesSkipped.get();
+    }
+
+    /**
+     * Number of refresh queries sent for instances whose TTL was running out, one per tick with any due.
+     *
+     * @return query count
+     */
+    public long getRefreshQueriesSent() {
+        return refreshQueriesSent.get();
+    }
+
+    /**
+     * Total number of payload bytes received, updated once per sampling period.
+     *
+     * @return byte count
+     */
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * Receive throughput over the last sampling period.
+     *
+     * @return datagrams per second
+     */
+    public double getPacketsPerSecond() {
+        return packetsPerSecond;
+    }
+
+    /**
+     * Receive throughput over the last sampling period.
+     *
+     * @return payload bytes per second
+     */
+    public double getBytesPerSecond() {
+        return bytesPerSecond;
     }
 
     public Discovery(String name) {
+        this(name, DEFAULT_PARSERS);
+    }
+
+    /**
+     * @param name    service type to browse, e.g. _http._tcp.
+     * @param parsers number of threads decoding received packets, and of cache shards applying them
+     */
+    public Discovery(String name, int parsers) {
+        if (parsers < 1) throw new IllegalArgumentException("At least one parser is needed");
         this.NAME = name;
+        this.browsedName = Service.fromName(name).getName().append(Domain.LOCAL.getName());
+        this.parserCount = parsers;
+        this.shards = new Shard[parsers];
+        for (int i = 0; i < parsers; i++) {
+            shards[i] = new Shard(i);
+        }
+        instancesCache.setRefresher(this::refresh);
     }
 
     public void addListener(InstancesCache.CacheListenerI listener) {
@@ -140,9 +622,14 @@ public class Discovery {
         instancesCache.removeListener(listener);
     }
 
+    /**
+     * Browses for new instances. Cached ones are refreshed by their own TTL, so the interval between browsing
+     * queries doubles each time, up to an hour (RFC 6762 section 5.2).
+     */
     class QueryRunner implements Runnable {
-        private int SAMPLING_PERIOD = 5000;
-        private int PING_SAMPLING = 2;
+        private static final long FIRST_INTERVAL = 10000; // [ms]
+        private static final long MAX_INTERVAL = 3600000; // [ms]
+        private long interval = FIRST_INTERVAL;
         private int heartBeat = 0;
         private boolean activeQueryRunner = true;
         private Thread heartBeatQueryThread;
@@ -169,17 +656,19 @@ public class Discovery {
                 // logger.info("QueryRunner: {}", heartBeat);
                 setupInterfaces();
 
-                if (heartBeat % PING_SAMPLING == 0) {
+                // The receiver sends the first query itself, so periodic queries start one interval later
+                if (heartBeat > 0) {
                     // queryInterfaceIa();
                     try {
                         iterateAndQueryAllInterfaces();
                     } catch (IOException e) {
                         logger.error("Could not iterateAndQueryAllInterfaces(): " + e.getMessage());
                     }
+                    interval = Math.min(2 * interval, MAX_INTERVAL);
                 }
 
                 try {
-                    Thread.sleep(SAMPLING_PERIOD);
+                    Thread.sleep(interval);
                 } catch (InterruptedException e) {
                     logger.info("[PacketReceiverHeartbeatAgent#run] was interrupted");
                     activeQueryRunner = false;
@@ -243,7 +732,9 @@ public class Discovery {
 
     private void query(InetAddress ia) throws IOException {
         Service service = Service.fromName(NAME);
-        Query query = Query.createFor(service, Domain.LOCAL);;
+        Query query = Query.createFor(service, Domain.LOCAL);
+        // Instances we already hold are listed, so their responders stay quiet
+        query.setKnownAnswers(instancesCache.getKnownAnswers(browsedName));
         query.runOnceNoInstances(ia);
     }
 
@@ -253,8 +744,8 @@ public class Discovery {
         queryAgent.start();
 
         // Packet Listener
-        PacketReceiverHeartbeatAgent packetAgent = new PacketReceiverHeartbeatAgent();
-        packetAgent.start();
+        PacketReceiver packetReceiver = new PacketReceiver();
+        packetReceiver.start();
 
         while(true) {
             try {
@@ -27,15 +27,19 @@ import org.slf4j.LoggerFactory;
 
 import java.net.InetAddress;
 import java.util.*;
-import java.util.stream.Collectors;
 
 public class Instance {
     private final String name;
-    private final Set<InetAddress> addresses;
+    private final int[] ipv4Addresses; // sorted, distinct
+    private final long[] ipv6Addresses; // sorted, distinct (high, low) pairs
     private final int port;
     public final Map<String, String> attributes;
     public Long ttl;
     public String host;
+    // The PTR record the instance was found by, and when it was last received, to list it as a known answer
+    PtrRecord pointer;
+    volatile long refreshedAt;
+    private volatile long connectRtt = -1; // [us]
 
     private final static Logger logger = LoggerFactory.getLogger(Instance.class);
 
@@ -43,8 +47,9 @@ public class Instance {
         String name = ptr.getUserVisibleName();
         int port;
         long ttl;
-        List<InetAddress> addresses = new ArrayList<>();
-        Map<String, String> attributes = Collections.emptyMap();
+        int[] ipv4Addresses;
+        long[] ipv6Addresses;
+        Map<String, String> attributes = TxtAttributes.EMPTY;
 
         Optional<SrvRecord> srv = records.stream()
                 .filter(r -> r instanceof SrvRecord && r.getName().equals(ptr.getPtrName()))
@@ -54,12 +59,25 @@ public class Instance {
             // logger.debug("Using SrvRecord {} to create instance for {}", srv, ptr);
             ttl = srv.get().getTTL();
             port = srv.get().getPort();
-            addresses.addAll(records.stream().filter(r -> r instanceof ARecord)
-                    .filter(r -> r.getName().equals(srv.get().getTarget())).map(r -> ((ARecord) r).getAddress())
-                    .collect(Collectors.toList()));
-            addresses.addAll(records.stream().filter(r -> r instanceof AaaaRecord)
-                    .filter(r -> r.getName().equals(srv.get().getTarget())).map(r -> ((AaaaRecord) r).getAddress())
-                    .collect(Collectors.toList()));
+            DnsName target = srv.get().getTarget();
+            int numIpv4 = 0;
+            int numIpv6 = 0;
+            for (Record r : records) {
+                if (r instanceof ARecord && r.getName().equals(target)) numIpv4++;
+                else if (r instanceof AaaaRecord && r.getName().equals(target)) numIpv6++;
+            }
+            ipv4Addresses = new int[numIpv4];
+            ipv6Addresses = new long[2 * numIpv6];
+            numIpv4 = 0;
+            numIpv6 = 0;
+            for (Record r : records) {
+                if (r instanceof ARecord && r.getName().equals(target)) {
+                    ipv4Addresses[numIpv4++] = ((ARecord) r).getAddressBits();
+                } else if (r instanceof AaaaRecord && r.getName().equals(target)) {
+                    ipv6Addresses[numIpv6++] = ((AaaaRecord) r).getHighBits();
+                    ipv6Addresses[numIpv6++] = ((AaaaRecord) r).getLowBits();
+                }
+            }
         } else {
             // throw new IllegalStateException("Cannot create Instance when no SRV record is available");
             logger.error("Cannot create Instance when no SRV record is available");
@@ -74,18 +92,71 @@ public class Instance {
             ttl = srv.get().getTTL();
         }
 
-        return new Instance(name, addresses, port, attributes, ttl);
+        Instance instance = new Instance(name, ipv4Addresses, ipv6Addresses, port, attributes, ttl);
+        instance.pointer = ptr;
+        instance.refreshedAt = System.currentTimeMillis();
+        return instance;
     }
 
-    Instance(String name, List<InetAddress> addresses, int port, Map<String, String> attributes, Long ttl) {
+    /**
+     * @param ipv4Addresses IPv4 addresses packed into ints, see {@link ARecord#getAddressBits()}
+     * @param ipv6Addresses IPv6 addresses packed into consecutive (high, low) pairs of longs
+     */
+    Instance(String name, int[] ipv4Addresses, long[] ipv6Addresses, int port, Map<String, String> attributes, Long ttl) {
         this.name = name;
         this.ttl = ttl;
-        this.addresses = new HashSet<>();
-        this.addresses.addAll(addresses);
+        this.ipv4Addresses = distinct(ipv4Addresses);
+        this.ipv6Addresses = distinctPairs(ipv6Addresses);
         this.port = port;
         this.attributes = attributes;
     }
 
+    /**
+     * @return round-trip time of the last successful TCP liveness probe in microseconds, or -1 if none succeeded
+     */
+    public long getConnectRtt() {
+        return connectRtt;
+    }
+
+    void setConnectRtt(long connectRtt) {
+        this.connectRtt = connectRtt;
+    }
+
+    private static int[] distinct(int[] addresses) {
+        int[] sorted = addresses.clone();
+        Arrays.sort(sorted);
+        int n = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (n == 0 || sorted[n - 1] != sorted[i]) sorted[n++] = sorted[i];
+        }
+        return n == sorted.length ? sorted : Arrays.copyOf(sorted, n);
+    }
+
+    private static long[] distinctPairs(long[] addresses) {
+        long[] sorted = addresses.clone();
+        // Insertion sort over (high, low) pairs: an instance rarely has more than a couple of addresses
+        for (int i = 2; i < sorted.length; i += 2) {
+            long high = sorted[i];
+            long low = sorted[i + 1];
+            int j = i - 2;
+            while (j >= 0 && (sorted[j] > high || sorted[j] == high && sorted[j + 1] > low)) {
+                sorted[j + 2] = sorted[j];
+                sorted[j + 3] = sorted[j + 1];
+                j -= 2;
+            }
+            sorted[j + 2] = high;
+            sorted[j + 3] = low;
+        }
+        int n = 0;
+        for (int i = 0; i < sorted.length; i += 2) {
+            if (n == 0 || sorted[n - 2] != sorted[i] || sorted[n - 1] != sorted[i + 1]) {
+                sorted[n++] = sorted[i];
+                sorted[n++] = sorted[i + 1];
+            }
+        }
+        return n == sorted.length ? sorted : Arrays.copyOf(sorted, n);
+    }
+
     /**
      * Get the user-visible name associated with this instance.
      * <p>
@@ -101,12 +172,20 @@ public class Instance {
     /**
      * Get the set of IP addresses associated with this instance.
      * <p>
-     * These values come from the instance's A and AAAA records.
+     * These values come from the instance's A and AAAA records. Addresses are stored packed into primitives and
+     * materialised as InetAddress objects on each call.
      *
      * @return set of addresses
      */
     @SuppressWarnings("unused")
     public Set<InetAddress> getAddresses() {
+        Set<InetAddress> addresses = new LinkedHashSet<>();
+        for (int address : ipv4Addresses) {
+            addresses.add(ARecord.toInetAddress(address));
+        }
+        for (int i = 0; i < ipv6Addresses.length; i += 2) {
+            addresses.add(AaaaRecord.toInetAddress(ipv6Addresses[i], ipv6Addresses[i + 1]));
+        }
         return Collections.unmodifiableSet(addresses);
     }
 
@@ -125,7 +204,7 @@ public class Instance {
     /**
      * Check whether this instance has the specified attribute.
      * <p>
-     * Attributes come from the instance's TXT records.
+     * Attributes come from the instance's TXT records and are looked up in the raw TXT data, ignoring case.
      *
      * @param attribute name of the attribute to search for
      * @return true if the instance has a value for attribute, false otherwise
@@ -138,7 +217,7 @@ public class Instance {
     /**
      * Get the value of the specified attribute.
      * <p>
-     * Attributes come from the instance's TXT records.
+     * Attributes come from the instance's TXT records and are looked up in the raw TXT data, ignoring case.
      *
      * @param attribute name of the attribute to search for
      * @return value of the given attribute, or null if the attribute doesn't exist in this Instance
@@ -152,7 +231,7 @@ public class Instance {
     public String toString() {
         return "{" +
                 "name='" + name + '\'' +
-                ", addresses=" + addresses +
+                ", addresses=" + getAddresses() +
                 ", host=" + host +
                 ", port=" + port +
                 ", attributes=" + attributes +
@@ -164,9 +243,8 @@ public class Instance {
         int result = 17;
         result = 31 * result + getName().hashCode();
         result = 31 * result + getPort();
-        for (InetAddress address : getAddresses()) {
-            result = 31 * result + address.hashCode();
-        }
+        result = 31 * result + Arrays.hashCode(ipv4Addresses);
+        result = 31 * result + Arrays.hashCode(ipv6Addresses);
         for (Map.Entry<String, String> entry : attributes.entrySet()) {
             result = 31 * result + entry.hashCode();
         }
@@ -185,15 +263,8 @@ public class Instance {
         if (getPort() != other.getPort()) {
             return false;
         }
-        for (InetAddress address : getAddresses()) {
-            if (!other.getAddresses().contains(address)) {
-                return false;
-            }
-        }
-        for (InetAddress address : other.getAddresses()) {
-            if (!getAddresses().contains(address)) {
-                return false;
-            }
+        if (!Arrays.equals(ipv4Addresses, other.ipv4Addresses) || !Arrays.equals(ipv6Addresses, other.ipv6Addresses)) {
+            return false;
         }
         for (String key : attributes.keySet()) {
             if (!other.hasAttribute(key) || !other.lookupAttribute(key).equals(lookupAttribute(key))) {
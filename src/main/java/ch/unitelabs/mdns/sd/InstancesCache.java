@@ -1,23 +1,56 @@
 package ch.unitelabs.mdns.sd;
 
+import ch.unitelabs.mdns.dns.DnsName;
+import ch.unitelabs.mdns.dns.PtrRecord;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.net.*;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
+/**
+ * Instances found by {@link Discovery}, by name.
+ * <p>
+ * The instances are held in a {@link PersistentMap}: a writer builds the next version, which shares all but one
+ * path with the current one, and publishes it with a compare-and-set. {@link #getCache()} hands out the current
+ * version as it is, so reading is a single volatile read, and writers never wait for readers or for each other.
+ * <p>
+ * Instances are removed once their TTL runs out without being received again. Each instance is filed in a
+ * {@link TimingWheel} when added; refreshes don't touch the wheel, instead an instance found refreshed when its
+ * slot comes up is filed again for its new expiry.
+ * <p>
+ * Before that, while someone watches the cache, the wheel also stops at 80, 85, 90 and 95% of the TTL plus up to
+ * 2% (RFC 6762 section 5.2) and the instances due in one tick are handed to the refresher together, so they can
+ * be asked for in one query.
+ */
 public class InstancesCache {
     private static Logger logger = LoggerFactory.getLogger(InstancesCache.class);
-    private static long MAX_SERVICE_TIMEOUT = 10; // [s]
-    private final Map<String, Instance> instances = new HashMap<>();
-    private final Set<CacheListenerI> listners = new HashSet<>();
+    private static final long EXPIRY_TICK = 1000; // [ms], TTLs are whole seconds
+    private static final int EXPIRY_SLOTS = 1024; // one revolution every 17 min
+    private static final double[] REFRESH_POINTS = {0.80, 0.85, 0.90, 0.95}; // fractions of the TTL
+    private static final double REFRESH_JITTER = 0.02; // fraction of the TTL
+    // Changed by the Discovery shard writers, one per instance name, by the heartbeat and by the expiry thread
+    private final AtomicReference<PersistentMap<String, Instance>> instances =
+            new AtomicReference<>(PersistentMap.<String, Instance>empty());
+    private final Set<CacheListenerI> listners = new CopyOnWriteArraySet<>();
+    private final TimingWheel<Instance> expiry = new TimingWheel<>(EXPIRY_SLOTS, EXPIRY_TICK, System.currentTimeMillis());
+    private final Random random = new Random();
+    private final List<Instance> refreshesDue = new ArrayList<>(); // only used by the expiry thread
+    private volatile Consumer<List<Instance>> refresher;
+    private volatile long lastRead; // last time the application read the cache [ms]
 
     private final int CONNECT_TIMEOUT = 1500;
+    private static final int MAX_PROBES_IN_FLIGHT = 8192;
 
     public InstancesCache() {
         InstancesCache.HeartbeatAgent agent = new InstancesCache.HeartbeatAgent();
         agent.start();
+        InstancesCache.ExpiryAgent expiryAgent = new InstancesCache.ExpiryAgent();
+        expiryAgent.start();
     }
 
     public void compare(Set<Instance> newInstances) {
@@ -59,6 +92,7 @@ public class InstancesCache {
         private int heartBeat = 0;
         private boolean active = true;
         private Thread heartBeatThread;
+        private final ConnectProber prober = new ConnectProber(MAX_PROBES_IN_FLIGHT, CONNECT_TIMEOUT);
 
         /**
          * Starts the PacketReceiverHeartbeatAgent asynchronously
@@ -78,7 +112,8 @@ public class InstancesCache {
                     active = false;
                     return;
                 }
-                logger.info("heartBeat: {} cache size: {} " + instances.keySet().toString(), heartBeat, instances.size() );
+                Map<String, Instance> cache = snapshot();
+                logger.info("heartBeat: {} cache size: {} {}", heartBeat, cache.size(), cache.keySet());
 
 
                 if (heartBeat % PING_SAMPLING == 0) {
@@ -99,76 +134,216 @@ public class InstancesCache {
             }
         }
 
-        void pingAll() {
+        /**
+         * Probe every cached instance at once and remove those that don't accept a connection.
+         */
+        void pingAll() throws IOException {
             List<Instance> objectsToRemove = new ArrayList<>();
-            for (Instance instance : instances.values()) {
-                // do timeout
-                // @todo: check if cache instances have timeout
-                if(!isInstanceReachable(instance)) {
-                    objectsToRemove.add(instance);
-                }
-            }
+            prober.probe(new ArrayList<>(snapshot().values()), objectsToRemove);
             objectsToRemove.stream().forEach(
                     o -> removeInstance(o.getName())
             );
         }
+    }
+
+    /**
+     * Advances the expiry wheel once per tick, removes the instances whose TTL ran out and passes those due for a
+     * refresh query on to the refresher.
+     */
+    public class ExpiryAgent implements Runnable {
+        private boolean active = true;
+        private Thread expiryThread;
+
+        /**
+         * Starts the ExpiryAgent asynchronously
+         */
+        public void start() {
+            expiryThread = new Thread(this, "Discovery_Expiry");
+            //terminate the thread with the VM.
+            expiryThread.setDaemon(true);
+            expiryThread.start();
+        }
 
-        private boolean isInstanceReachable(Instance instance) {
-            SocketAddress socketAddress = new InetSocketAddress(instance.host, instance.getPort());
-            Socket socket = new Socket();
-            boolean online = true;
-            // Connect with 10 s timeout
-            try {
-                socket.connect(socketAddress, CONNECT_TIMEOUT);
-            } catch (IOException iOException) {
-                online = false;
-            } finally {
-                // As the close() operation can also throw an IOException
-                // it must caught here
+        public void run() {
+            while (active) {
+                try {
+                    expiry.advance(System.currentTimeMillis(), InstancesCache.this::expire);
+                    Consumer<List<Instance>> target = refresher;
+                    if (target != null && !refreshesDue.isEmpty()) target.accept(new ArrayList<>(refreshesDue));
+                    refreshesDue.clear();
+                } catch (RuntimeException e) {
+                    logger.error(e.getMessage());
+                }
                 try {
-                    socket.close();
-                } catch (IOException ex) {
-                    // feel free to do something moderately useful here, eg log the event
-                    logger.error(ex.getMessage());
+                    // Wake up on the tick boundary, so expiry doesn't drift behind the wheel
+                    Thread.sleep(EXPIRY_TICK - System.currentTimeMillis() % EXPIRY_TICK);
+                } catch (InterruptedException e) {
+                    logger.info("[ExpiryAgent#run] was interrupted");
+                    active = false;
                 }
+            }
+        }
+    }
+
+    /**
+     * Called by the wheel when an instance's slot comes up.
+     */
+    private void expire(Instance instance) {
+        // Removed, or replaced by a new instance of the same name, since it was filed
+        if (snapshot().get(instance.getName()) != instance) return;
+        long now = System.currentTimeMillis();
+        long receivedAt = instance.refreshedAt; // read first, the TTL is written before it
+        long ttl = 1000 * instance.ttl;
+        if (receivedAt + ttl > now) {
+            // At a refresh point, unless received again since it was filed
+            if (now >= receivedAt + REFRESH_POINTS[0] * ttl && isWatched(ttl, now)) refreshesDue.add(instance);
+            expiry.schedule(instance, nextCheck(receivedAt, ttl, now));
+            return;
+        }
+        if (!remove(instance.getName(), instance)) return;
+        logger.info("Instance expired: {}", instance.getName());
+        notifyRemoved(instance.getName());
+    }
 
+    /**
+     * @param receivedAt time the instance was last received [ms]
+     * @param ttl        TTL [ms]
+     * @return the first refresh point still ahead, with its jitter, or the expiry if none is left
+     */
+    private long nextCheck(long receivedAt, long ttl, long now) {
+        for (double point : REFRESH_POINTS) {
+            if (receivedAt + point * ttl > now) {
+                return receivedAt + (long) ((point + REFRESH_JITTER * random.nextDouble()) * ttl);
             }
-            return online;
         }
+        return receivedAt + ttl;
+    }
+
+    /**
+     * Whether anyone still cares about the instances, so refreshing them is worth a query: listeners are registered,
+     * or the application read the cache within one TTL.
+     */
+    private boolean isWatched(long ttl, long now) {
+        return !listners.isEmpty() || now - lastRead < ttl;
     }
 
+    /**
+     * Set who asks for the instances due for a refresh. It is called on the expiry thread with the instances of
+     * one tick.
+     */
+    void setRefresher(Consumer<List<Instance>> refresher) {
+        this.refresher = refresher;
+    }
+
+    /**
+     * @return an immutable snapshot of the cached instances by name, as of one point in time
+     */
     public Map<String, Instance> getCache() {
-        return instances;
+        lastRead = System.currentTimeMillis();
+        return snapshot();
+    }
+
+    private Map<String, Instance> snapshot() {
+        return instances.get();
+    }
+
+    /**
+     * @return false if an instance of that name is already cached
+     */
+    private boolean putIfAbsent(Instance instance) {
+        while (true) {
+            PersistentMap<String, Instance> current = instances.get();
+            if (current.containsKey(instance.getName())) return false;
+            if (instances.compareAndSet(current, current.plus(instance.getName(), instance))) return true;
+        }
+    }
+
+    /**
+     * @param expected the cached instance to remove, or null for whichever is cached under that name
+     * @return false if there was none to remove
+     */
+    private boolean remove(String instanceName, Instance expected) {
+        while (true) {
+            PersistentMap<String, Instance> current = instances.get();
+            Instance cached = current.get(instanceName);
+            if (cached == null || (expected != null && cached != expected)) return false;
+            if (instances.compareAndSet(current, current.minus(instanceName))) return true;
+        }
     }
 
     public void addInstance(Instance instance) {
         // already exists!
-        if (checkInstance(instance.getName())) return;
+        Instance cached = snapshot().get(instance.getName());
+        if (cached != null) {
+            if (instance.pointer != null) cached.pointer = instance.pointer;
+            refresh(instance.getName(), instance.ttl);
+            return;
+        }
 
         if (instance.ttl == 0) {
             removeInstance(instance.getName());
         } else {
+            if (!putIfAbsent(instance)) return;
+            expiry.schedule(instance, nextCheck(instance.refreshedAt, 1000 * instance.ttl, System.currentTimeMillis()));
             logger.info("Instance added: {}", instance.toString());
-            instances.put(instance.getName(), instance);
             for (CacheListenerI listener : listners) {
                 listener.deviceAdded(instance.getName(), instance.host, instance.getPort());
             }
         }
     }
 
+    /**
+     * Update the TTL of a cached instance without rebuilding it.
+     *
+     * @param instanceName name of the instance
+     * @param ttl          TTL announced in the latest packet
+     * @return false if the instance is not cached, in which case it must be added in full
+     */
+    public boolean refresh(String instanceName, long ttl) {
+        Instance instance = snapshot().get(instanceName);
+        if (instance == null) return false;
+        instance.ttl = ttl;
+        instance.refreshedAt = System.currentTimeMillis();
+        return true;
+    }
+
+    /**
+     * PTR records of the cached instances of a service that have more than half their TTL left, to list as known
+     * answers in queries (RFC 6762 section 7.1) so that responders don't repeat them.
+     *
+     * @param serviceName service type and domain, e.g. _http._tcp.local.
+     * @return the PTR records, with their remaining TTL
+     */
+    List<PtrRecord> getKnownAnswers(DnsName serviceName) {
+        long now = System.currentTimeMillis();
+        List<PtrRecord> knownAnswers = new ArrayList<>();
+        for (Instance instance : snapshot().values()) {
+            PtrRecord pointer = instance.pointer;
+            if (pointer == null || !pointer.getName().equals(serviceName)) continue;
+            long remaining = pointer.getTTL() - TimeUnit.MILLISECONDS.toSeconds(now - instance.refreshedAt);
+            if (2 * remaining > pointer.getTTL()) {
+                knownAnswers.add(new PtrRecord(serviceName, remaining, pointer.getPtrName()));
+            }
+        }
+        return knownAnswers;
+    }
+
     public void removeInstance(String instanceName){
         // doesn't exist
-        if (!checkInstance(instanceName)) return;
+        if (!remove(instanceName, null)) return;
 
         logger.info("Instance removed: {}", instanceName);
-        instances.remove(instanceName);
+        notifyRemoved(instanceName);
+    }
+
+    private void notifyRemoved(String instanceName) {
         for (CacheListenerI listener : listners) {
             listener.deviceRemoved(instanceName);
         }
     }
 
     public boolean checkInstance(String instaneName) {
-        Instance preExistent = instances.get(instaneName);
+        Instance preExistent = snapshot().get(instaneName);
         return preExistent != null;
     }
 }
@@ -1,4 +1,1215 @@
 package ch.unitelabs.mdns.sd;
 
+import ch.unitelabs.mdns.dns.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * mDNS responder: registers service instances on this host and answers PTR, SRV, TXT, A and AAAA questions
+ * about them.
+ * <p>
+ * Records live in an {@link AnswerIndex} keyed by name and type. Multicast replies are packed into MTU-sized
+ * compressed packets the first time a question is asked and cached until the next registration change, so a
+ * burst of queries from hundreds of clients costs two lookups and a few sends per query, and a PTR query for a
+ * service with thousands of instances costs a few dozen packets rather than thousands.
+ * <p>
+ * New instances are probed and announced as RFC 6762 section 8 requires, by batches on one shared scheduler
+ * thread: every instance registered before a batch's first probe goes out shares its probe and announcement
+ * packets, so registering thousands of instances at once costs a few packets per step rather than a timer each.
+ * Another host probing for the same name at the same time is settled by the section 8.2 tie-break.
+ * <p>
+ * Multicast answers wait 20-120 ms so that the questions of many clients asking at once go out as one reply, and a
+ * record is multicast at most once per second (RFC 6762 section 6); answers dropped by that limit are counted.
+ * Replies go out of the interface the query came in on, probes and announcements out of every interface.
+ * Questions asking for a unicast response (QU) are answered directly to the querier while the records were
+ * multicast within the last quarter of their TTL, as other hosts' caches are then still fresh; such a reply goes out
+ * at once if it holds only unique records, else after the same 20-120 ms as multicast answers. Answers the querier
+ * lists as known answers with at least half their TTL left are not sent (RFC 6762 section 7.1).
+ */
 public class MDNSRegistry {
+    private final static Logger logger = LoggerFactory.getLogger(MDNSRegistry.class);
+
+    private static final DnsName SERVICE_TYPES = DnsName.of("_services._dns-sd._udp.local.");
+    private static final long SERVICE_TTL = 4500; // [s], RFC 6762 section 10: PTR and TXT records
+    private static final long HOST_TTL = 120; // [s], SRV and address records
+    private static final long PROBE_INTERVAL = 250; // [ms], RFC 6762 section 8.1, also the largest initial delay
+    private static final int PROBE_COUNT = 3;
+    private static final long ANNOUNCE_INTERVAL = 1000; // [ms], RFC 6762 section 8.3
+    private static final int ANNOUNCE_COUNT = 2;
+    private static final int MIN_ANSWER_DELAY = 20; // [ms], RFC 6762 section 6
+    private static final int MAX_ANSWER_DELAY = 120; // [ms]
+    private static final int TRUNCATED_QUERY_DELAY = 400; // [ms], RFC 6762 section 7.2, plus 0-100 ms
+    private static final long RECORD_MULTICAST_INTERVAL = 1000; // [ms], RFC 6762 section 6
+    private static final long TIE_BREAK_DELAY = 1000; // [ms], RFC 6762 section 8.2
+    private static final Pattern CONFLICT_SUFFIX = Pattern.compile("(.*) \\((\\d+)\\)");
+
+    private enum State {
+        PROBING, ANNOUNCING, ANNOUNCED
+    }
+
+    private final DnsName hostName;
+    private final AnswerIndex index = new AnswerIndex();
+    private final Map<DnsName, Registration> registrations = new HashMap<>(); // guarded by this
+    // Registrations by the name they were registered under, which differs from their own once renamed
+    private final Map<DnsName, Registration> requested = new HashMap<>(); // guarded by this
+    private final Map<DnsName, Registration> probing = new ConcurrentHashMap<>(); // read by the responder thread
+    private final Random random = new Random();
+    private ProbeBatch pendingBatch; // accepts registrations until its first probe goes out, guarded by this
+    private ScheduledExecutorService scheduler; // guarded by this
+    private final ResponsePacker schedulerPacker = new ResponsePacker(); // only used on the scheduler thread
+
+    private final AtomicLong queriesReceived = new AtomicLong();
+    private final AtomicLong responsesSent = new AtomicLong();
+    private final AtomicLong answersSuppressed = new AtomicLong();
+    private final AtomicLong unicastResponsesSent = new AtomicLong();
+    private final AtomicLong knownAnswersSuppressed = new AtomicLong();
+    private volatile Responder responder; // also read by the scheduler thread
+
+    /**
+     * Responder for this machine's host name, answering with the addresses of every interface that is up.
+     *
+     * @throws IOException if the host name or the interfaces can't be read
+     */
+    public MDNSRegistry() throws IOException {
+        this(InetAddress.getLocalHost().getHostName().split("\\.")[0], localAddresses());
+    }
+
+    /**
+     * @param hostName  host label, advertised as hostName.local.
+     * @param addresses addresses advertised for the host
+     */
+    public MDNSRegistry(String hostName, Collection<InetAddress> addresses) {
+        this.hostName = Domain.LOCAL.getName().prepend(hostName);
+        List<ARecord> ipv4 = new ArrayList<>();
+        List<AaaaRecord> ipv6 = new ArrayList<>();
+        for (InetAddress address : addresses) {
+            ByteBuffer bits = ByteBuffer.wrap(address.getAddress());
+            if (address instanceof Inet4Address) {
+                ipv4.add(new ARecord(this.hostName, HOST_TTL, true, bits.getInt()));
+            } else {
+                ipv6.add(new AaaaRecord(this.hostName, HOST_TTL, true, bits.getLong(), bits.getLong()));
+            }
+        }
+        index.replace(this.hostName, Record.Type.A.asUnsignedShort(), answers(ipv4));
+        index.replace(this.hostName, Record.Type.AAAA.asUnsignedShort(), answers(ipv6));
+    }
+
+    private List<AnswerIndex.Answer> answers(List<? extends Record> records) {
+        List<AnswerIndex.Answer> answers = new ArrayList<>();
+        for (Record record : records) {
+            answers.add(index.answer(record));
+        }
+        return answers;
+    }
+
+    private static List<InetAddress> localAddresses() throws SocketException {
+        List<InetAddress> addresses = new ArrayList<>();
+        for (NetworkInterface networkInterface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            if (!networkInterface.isUp() || networkInterface.isLoopback()) continue;
+            addresses.addAll(Collections.list(networkInterface.getInetAddresses()));
+        }
+        return addresses;
+    }
+
+    /**
+     * Register (or replace) a service instance on this host.
+     * <p>
+     * The instance is answered for once it has been probed, about 750 ms after {@link #start()}. If another host
+     * already uses the name, the instance is renamed "name (2)", "name (3)" and so on; it is still unregistered
+     * under the name given here, see {@link #getRegisteredName(String, Service)}.
+     *
+     * @param instanceName user-visible instance name, e.g. "My Printer"
+     * @param service      service type, e.g. _http._tcp
+     * @param port         port the service listens on
+     * @param attributes   TXT attributes, possibly empty
+     */
+    public synchronized void register(String instanceName, Service service, int port, Map<String, String> attributes) {
+        Registration registration = new Registration(instanceName, service.getName().append(Domain.LOCAL.getName()),
+                port, attributes);
+        Registration previous = requested.put(registration.requested, registration);
+        if (previous != null) {
+            registrations.remove(previous.name, previous);
+            withdraw(previous, false);
+        }
+        Registration replaced = registrations.put(registration.name, registration);
+        if (replaced != null) {
+            // An instance renamed to the name just registered gives way
+            requested.remove(replaced.requested, replaced);
+            withdraw(replaced, false);
+        }
+        probe(registration);
+        logger.debug("Registered {} on port {}", registration.name, port);
+    }
+
+    /**
+     * Unregister an instance, announcing its removal to the network if it was already announced.
+     *
+     * @return false if no such instance was registered
+     */
+    public synchronized boolean unregister(String instanceName, Service service) {
+        Registration registration = find(instanceName, service);
+        if (registration == null) {
+            return false;
+        }
+        registrations.remove(registration.name);
+        requested.remove(registration.requested, registration);
+        withdraw(registration, true);
+        logger.debug("Unregistered {}", registration.name);
+        return true;
+    }
+
+    public synchronized int getInstanceCount() {
+        return registrations.size();
+    }
+
+    /**
+     * @return true once the instance has been probed and is answered for
+     */
+    public synchronized boolean isAnnounced(String instanceName, Service service) {
+        Registration registration = find(instanceName, service);
+        return registration != null && registration.state != State.PROBING;
+    }
+
+    /**
+     * @return the name the instance is registered under on the network, which differs from the one given after a
+     * conflict, or null if no such instance is registered
+     */
+    public synchronized String getRegisteredName(String instanceName, Service service) {
+        Registration registration = find(instanceName, service);
+        return registration == null ? null : registration.label;
+    }
+
+    /**
+     * @return the instance registered under the name, or renamed to it
+     */
+    private Registration find(String instanceName, Service service) {
+        DnsName name = service.getName().append(Domain.LOCAL.getName()).prepend(instanceName);
+        Registration registration = requested.get(name);
+        return registration != null ? registration : registrations.get(name);
+    }
+
+    public synchronized void start() {
+        if (responder != null) {
+            return;
+        }
+        responder = new Responder();
+        responder.start();
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "MDNSRegistry_Scheduler");
+            //terminate the thread with the VM.
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Anything registered before start, or still probing when stopped, is probed now
+        pendingBatch = null;
+        for (Registration registration : registrations.values()) {
+            if (registration.state == State.PROBING) probe(registration);
+        }
+    }
+
+    public synchronized void stop() {
+        if (responder != null) {
+            responder.stop();
+            responder = null;
+            scheduler.shutdownNow();
+            scheduler = null;
+            pendingBatch = null;
+        }
+    }
+
+    private void probe(Registration registration) {
+        registration.deferred = false;
+        probing.put(registration.name, registration);
+        if (scheduler == null) {
+            return;
+        }
+        if (pendingBatch == null) {
+            pendingBatch = new ProbeBatch();
+            // RFC 6762 section 8.1: wait 0-250 ms so hosts powered on together don't probe in lockstep
+            pendingBatch.schedule(random.nextInt((int) PROBE_INTERVAL));
+        }
+        pendingBatch.members.add(registration);
+    }
+
+    /**
+     * Remove an instance's records from the index, and from the network's caches if goodbye is set.
+     */
+    private void withdraw(Registration registration, boolean goodbye) {
+        if (registration.state == State.PROBING) {
+            probing.remove(registration.name, registration);
+            return;
+        }
+        if (index.removePointer(registration.serviceName, registration.name) == 0) {
+            index.removePointer(SERVICE_TYPES, registration.serviceName);
+        }
+        index.replace(registration.name, Record.Type.SRV.asUnsignedShort(), Collections.<AnswerIndex.Answer>emptyList());
+        index.replace(registration.name, Record.Type.TXT.asUnsignedShort(), Collections.<AnswerIndex.Answer>emptyList());
+        if (goodbye && scheduler != null) {
+            // RFC 6762 section 10.1: a zero TTL tells caches to drop the record
+            List<AnswerIndex.Answer> goodbyes = Collections.singletonList(
+                    index.answer(new PtrRecord(registration.serviceName, 0, registration.name)));
+            scheduler.execute(() -> multicast(schedulerPacker.pack(index, goodbyes, maxPacketSize(), null, false)));
+        }
+    }
+
+    private void publish(Registration registration) {
+        index.replace(registration.name, Record.Type.SRV.asUnsignedShort(), Collections.singletonList(registration.srv));
+        index.replace(registration.name, Record.Type.TXT.asUnsignedShort(), Collections.singletonList(registration.txt));
+        index.addPointer(registration.ptr);
+        index.addPointer(registration.serviceTypePtr);
+    }
+
+    /**
+     * Called from the responder thread when another host answers for a name being probed.
+     */
+    private synchronized void conflict(Registration registration) {
+        if (registrations.get(registration.name) != registration || registration.state != State.PROBING) {
+            return;
+        }
+        registrations.remove(registration.name);
+        probing.remove(registration.name, registration);
+
+        String label = registration.label;
+        int suffix = 2;
+        Matcher matcher = CONFLICT_SUFFIX.matcher(label);
+        if (matcher.matches()) {
+            label = matcher.group(1);
+            suffix = Integer.parseInt(matcher.group(2)) + 1;
+        }
+        // Skip the names our own instances already use
+        while (registrations.containsKey(registration.serviceName.prepend(label + " (" + suffix + ")"))) {
+            suffix++;
+        }
+        Registration renamed = new Registration(label + " (" + suffix + ")", registration.requested,
+                registration.serviceName, registration.port, registration.attributes);
+        logger.info("Name conflict for {}, probing {} instead", registration.name, renamed.name);
+        registrations.put(renamed.name, renamed);
+        requested.put(renamed.requested, renamed);
+        probe(renamed);
+    }
+
+    /**
+     * Called from the responder thread when another host probing for the same name proposed records that sort
+     * later than ours (RFC 6762 section 8.2): probing starts over after a second, unless a conflict intervenes.
+     */
+    private synchronized void lostTieBreak(Registration registration) {
+        if (registrations.get(registration.name) != registration || registration.state != State.PROBING
+                || registration.deferred) {
+            return;
+        }
+        // A fresh registration drops out of the current batch, and stays in probing to still see conflicts
+        Registration retry = new Registration(registration.label, registration.requested, registration.serviceName,
+                registration.port, registration.attributes);
+        retry.deferred = true;
+        registrations.put(retry.name, retry);
+        requested.put(retry.requested, retry);
+        probing.put(retry.name, retry);
+        logger.info("Simultaneous probe for {} won by another host, probing again in {} ms", retry.name,
+                TIE_BREAK_DELAY);
+        if (scheduler == null) return;
+        scheduler.schedule(() -> {
+            synchronized (MDNSRegistry.this) {
+                if (registrations.get(retry.name) == retry && retry.deferred) probe(retry);
+            }
+        }, TIE_BREAK_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    private void multicast(byte[][] packets) {
+        multicast(packets, Collections.<AnswerIndex.Answer>emptyList());
+    }
+
+    /**
+     * @param sent answers the packets hold, marked as multicast on every route they went out on
+     */
+    private void multicast(byte[][] packets, List<AnswerIndex.Answer> sent) {
+        Responder current = responder;
+        if (current == null) return;
+        current.multicast(packets, sent);
+    }
+
+    private int maxPacketSize() {
+        Responder current = responder;
+        return current == null ? Message.MAX_LENGTH : current.maxPacketSize;
+    }
+
+    /**
+     * Instances probed and announced together; each step runs on the scheduler thread and schedules the next.
+     */
+    private final class ProbeBatch implements Runnable {
+        private final List<Registration> members = new ArrayList<>();
+        private int step;
+
+        void schedule(long delay) {
+            scheduler.schedule(this, delay, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void run() {
+            synchronized (MDNSRegistry.this) {
+                if (pendingBatch == this) pendingBatch = null;
+                if (scheduler == null) return;
+                // Drop members that were unregistered, replaced or renamed since the last step
+                members.removeIf(registration -> registrations.get(registration.name) != registration);
+                if (members.isEmpty()) return;
+                if (!responder.isReady()) {
+                    schedule(PROBE_INTERVAL);
+                    return;
+                }
+
+                if (step < PROBE_COUNT) {
+                    sendProbes();
+                    step++;
+                    schedule(PROBE_INTERVAL);
+                    return;
+                }
+                if (step == PROBE_COUNT) {
+                    // Nobody objected: the names are ours
+                    for (Registration registration : members) {
+                        probing.remove(registration.name, registration);
+                        registration.state = State.ANNOUNCING;
+                        publish(registration);
+                    }
+                }
+                announce();
+                step++;
+                if (step < PROBE_COUNT + ANNOUNCE_COUNT) {
+                    schedule(ANNOUNCE_INTERVAL);
+                } else {
+                    for (Registration registration : members) {
+                        registration.state = State.ANNOUNCED;
+                    }
+                }
+            }
+        }
+
+        private void sendProbes() {
+            List<DnsName> names = new ArrayList<>(members.size());
+            List<List<AnswerIndex.Answer>> proposed = new ArrayList<>(members.size());
+            for (Registration registration : members) {
+                names.add(registration.name);
+                proposed.add(Arrays.asList(registration.srv, registration.txt));
+            }
+            // The first probe asks for unicast replies (RFC 6762 section 8.1)
+            multicast(schedulerPacker.packProbes(names, proposed, maxPacketSize(), step == 0));
+        }
+
+        private void announce() {
+            List<AnswerIndex.Answer> answers = new ArrayList<>(4 * members.size() + 2);
+            // Service type pointers first, so single-instance browsers pick the instance's PTR record
+            for (Registration registration : members) {
+                AnswerIndex.addOnce(answers, registration.serviceTypePtr);
+            }
+            for (Registration registration : members) {
+                answers.add(registration.ptr);
+                answers.add(registration.srv);
+                answers.add(registration.txt);
+            }
+            AnswerIndex.Entry host = index.get(hostName);
+            if (host != null) {
+                Collections.addAll(answers, host.get(AnswerIndex.QTYPE_ANY));
+            }
+            multicast(schedulerPacker.pack(index, answers, maxPacketSize(), null, false), answers);
+        }
+    }
+
+    /**
+     * A registered instance and its records, encoded once.
+     */
+    private final class Registration {
+        private final String label;
+        private final DnsName requested; // the name registered, before any conflict renamed the instance
+        private final DnsName serviceName;
+        private final DnsName name;
+        private final int port;
+        private final Map<String, String> attributes;
+        private final AnswerIndex.Answer ptr;
+        private final AnswerIndex.Answer serviceTypePtr;
+        private final AnswerIndex.Answer srv;
+        private final AnswerIndex.Answer txt;
+        private State state = State.PROBING;
+        private boolean deferred; // waiting to probe again after losing a tie-break
+
+        Registration(String label, DnsName serviceName, int port, Map<String, String> attributes) {
+            this(label, serviceName.prepend(label), serviceName, port, attributes);
+        }
+
+        Registration(String label, DnsName requested, DnsName serviceName, int port, Map<String, String> attributes) {
+            this.label = label;
+            this.requested = requested;
+            this.serviceName = serviceName;
+            this.name = serviceName.prepend(label);
+            this.port = port;
+            this.attributes = attributes;
+            ptr = index.answer(new PtrRecord(serviceName, SERVICE_TTL, name));
+            serviceTypePtr = index.answer(new PtrRecord(SERVICE_TYPES, SERVICE_TTL, serviceName));
+            srv = index.answer(new SrvRecord(name, HOST_TTL, true, 0, 0, port, hostName));
+            txt = index.answer(new TxtRecord(name, SERVICE_TTL, true, attributes));
+        }
+    }
+
+    /**
+     * Number of valid mDNS queries received.
+     *
+     * @return query count
+     */
+    public long getQueriesReceived() {
+        return queriesReceived.get();
+    }
+
+    /**
+     * Number of response packets sent, multicast or unicast.
+     *
+     * @return response count
+     */
+    public long getResponsesSent() {
+        return responsesSent.get();
+    }
+
+    /**
+     * Number of answers left out of multicast replies because the record had been multicast less than a second
+     * before.
+     *
+     * @return answer count
+     */
+    public long getAnswersSuppressed() {
+        return answersSuppressed.get();
+    }
+
+    /**
+     * Number of response packets sent by unicast, to legacy resolvers and to QU questions.
+     *
+     * @return response count
+     */
+    public long getUnicastResponsesSent() {
+        return unicastResponsesSent.get();
+    }
+
+    /**
+     * Number of answers left out of replies because the querier listed them as known answers.
+     *
+     * @return answer count
+     */
+    public long getKnownAnswersSuppressed() {
+        return knownAnswersSuppressed.get();
+    }
+
+    public DnsName getHostName() {
+        return hostName;
+    }
+
+    /**
+     * Receives queries on the mDNS group and answers them from the index.
+     */
+    public class Responder implements Runnable {
+        private static final int SELECT_TIMEOUT = 1000; // [ms]
+        private static final long LINKS_REFRESH = 30000; // [ms], interfaces coming and going are picked up this late
+        private volatile boolean active = true;
+        private Thread responderThread;
+        private Selector selector;
+        // Channels and the group each one sends multicast replies to; the scheduler thread sends on them too
+        private final Map<DatagramChannel, InetSocketAddress> channels = new ConcurrentHashMap<>();
+        private MulticastChannels.Links links; // only used by the responder thread
+        private long linksReadAt; // [ms]
+        private volatile List<Route> routes = Collections.emptyList(); // every channel's group on every interface
+        // Route ids by address family and interface index; kept across restarts, as answers keep their send times
+        private final Map<Long, Integer> routeIds = new HashMap<>(); // only used by the responder thread
+
+        private ByteBuffer buffer; // borrowed from the pool while the responder runs
+        private final ResponsePacker packer = new ResponsePacker();
+        private final List<AnswerIndex.Answer> answers = new ArrayList<>();
+        private final Map<Route, PendingReply> pendingReplies = new HashMap<>();
+        private final Map<InetSocketAddress, UnicastReply> unicastReplies = new HashMap<>();
+        private final Map<InetSocketAddress, HeldQuery> heldQueries = new HashMap<>();
+        private final ByteBuffer scratch = ByteBuffer.allocate(Message.MAX_LENGTH);
+        private volatile int maxPacketSize = Message.MAX_LENGTH;
+
+        /**
+         * Starts the Responder asynchronously
+         */
+        public void start() {
+            responderThread = new Thread(this, "MDNSRegistry_Responder");
+            //terminate the thread with the VM.
+            responderThread.setDaemon(true);
+            responderThread.start();
+        }
+
+        /**
+         * Stops the receive loop and closes its channels.
+         */
+        public void stop() {
+            active = false;
+            if (selector != null) selector.wakeup();
+        }
+
+        void setupResponder() throws IOException {
+            logger.info("Responder setup");
+            selector = Selector.open();
+            if (buffer == null) buffer = BufferPool.DIRECT.acquire();
+            openChannel(StandardProtocolFamily.INET, InetAddress.getByName(MulticastChannels.MDNS_IP4_ADDRESS));
+            openChannel(StandardProtocolFamily.INET6, InetAddress.getByName(MulticastChannels.MDNS_IP6_ADDRESS));
+            if (channels.isEmpty()) throw new IOException("No multicast group could be joined");
+            maxPacketSize = MulticastChannels.maxPayload();
+            readLinks(System.currentTimeMillis());
+        }
+
+        boolean isReady() {
+            return !routes.isEmpty();
+        }
+
+        /**
+         * List the interfaces again and route every channel's group out of each that has an address of its family.
+         */
+        private void readLinks(long now) {
+            links = MulticastChannels.Links.read();
+            linksReadAt = now;
+            List<Route> current = new ArrayList<>();
+            for (Map.Entry<DatagramChannel, InetSocketAddress> channel : channels.entrySet()) {
+                for (NetworkInterface networkInterface : links.getOutgoing()) {
+                    if (!links.canReach(networkInterface, channel.getValue().getAddress())) continue;
+                    long key = (long) channel.getValue().getAddress().getAddress().length << 32
+                            | networkInterface.getIndex() & 0xFFFFFFFFL;
+                    int id = routeIds.computeIfAbsent(key, k -> routeIds.size());
+                    current.add(new Route(channel.getKey(), channel.getValue(), networkInterface, id));
+                }
+            }
+            routes = Collections.unmodifiableList(current);
+        }
+
+        /**
+         * @return the routes to reply on to a query received on the channel: the sender's interface, or every
+         * interface if it can't be told
+         */
+        private List<Route> routesTo(DatagramChannel channel, InetSocketAddress source) {
+            NetworkInterface networkInterface = links.find(source.getAddress());
+            List<Route> found = new ArrayList<>(1);
+            for (Route route : routes) {
+                if (route.channel != channel) continue;
+                if (route.isOn(networkInterface)) return Collections.singletonList(route);
+                found.add(route);
+            }
+            return found;
+        }
+
+        /**
+         * Send packets to the mDNS group of every channel, out of every interface; safe to call from any thread.
+         *
+         * @param sent answers the packets hold, marked as multicast on each route the packets went out on
+         */
+        void multicast(byte[][] packets, List<AnswerIndex.Answer> sent) {
+            long now = System.currentTimeMillis();
+            for (Route route : routes) {
+                try {
+                    for (byte[] packet : packets) {
+                        route.send(packet);
+                        responsesSent.incrementAndGet();
+                    }
+                    for (AnswerIndex.Answer answer : sent) {
+                        answer.multicastOn(route.id, now);
+                    }
+                } catch (IOException e) {
+                    logger.debug("Could not send on {}: {}", route, e.getMessage());
+                }
+            }
+        }
+
+        private void openChannel(ProtocolFamily family, InetAddress group) {
+            try {
+                channels.put(MulticastChannels.open(selector, family, group, MulticastChannels.MDNS_PORT),
+                        new InetSocketAddress(group, MulticastChannels.MDNS_PORT));
+            } catch (IOException e) {
+                logger.error("Could not listen for {}: {}", group, e.getMessage());
+            }
+        }
+
+        public void run() {
+            while (active && selector == null) {
+                try {
+                    setupResponder();
+                } catch (IOException e) {
+                    logger.error("Responder setup failed: {}", e.getMessage());
+                    close();
+                    try {
+                        Thread.sleep(SELECT_TIMEOUT);
+                    } catch (InterruptedException ie) {
+                        logger.info("[Responder#run] was interrupted");
+                        return;
+                    }
+                }
+            }
+
+            while (active) {
+                if (Thread.interrupted()) {
+                    //to quit from the middle of the loop
+                    logger.info("Thread.interrupted()");
+                    break;
+                }
+                try {
+                    if (selector.select(selectTimeout()) > 0) {
+                        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                        while (keys.hasNext()) {
+                            SelectionKey key = keys.next();
+                            keys.remove();
+                            if (key.isValid() && key.isReadable()) {
+                                drain((DatagramChannel) key.channel());
+                            }
+                        }
+                    }
+                    sendDueReplies();
+                    long now = System.currentTimeMillis();
+                    if (now - linksReadAt >= LINKS_REFRESH) readLinks(now);
+                } catch (IOException e) {
+                    logger.error("[Responder#run] select failed: {}", e.getMessage());
+                }
+            }
+            close();
+        }
+
+        /**
+         * Answer every datagram currently queued on the channel.
+         */
+        private void drain(DatagramChannel channel) throws IOException {
+            SocketAddress source;
+            buffer.clear();
+            while ((source = channel.receive(buffer)) != null) {
+                buffer.flip();
+                try {
+                    handleQuery(channel, (InetSocketAddress) source);
+                } catch (RuntimeException e) {
+                    logger.debug("Could not answer packet from {}: {}", source, e.getMessage());
+                }
+                buffer.clear();
+            }
+        }
+
+        private void handleQuery(DatagramChannel channel, InetSocketAddress source) throws IOException {
+            Request request = Request.createFrom(buffer);
+            if (!request.isValid()) {
+                if (!probing.isEmpty()) checkConflicts();
+                return;
+            }
+            queriesReceived.incrementAndGet();
+            if (request.getAuthorityCount() > 0 && !probing.isEmpty()) breakTies(request);
+
+            // Queries from a port other than 5353 come from legacy resolvers, which expect an immediate unicast reply
+            if (source.getPort() != MulticastChannels.MDNS_PORT) {
+                answers.clear();
+                for (int i = 0; i < request.getQuestionCount(); i++) {
+                    if (request.getQuestionClass(i) == Question.QClass.UNSUPPORTED) continue;
+                    AnswerIndex.Entry entry = index.get(request.getQuestionName(i));
+                    if (entry == null) continue;
+                    for (AnswerIndex.Answer answer : entry.get(request.getQuestionType(i))) {
+                        AnswerIndex.addOnce(answers, answer);
+                    }
+                }
+                for (byte[] packet : packer.pack(index, answers, maxPacketSize, request)) {
+                    channel.send(ByteBuffer.wrap(packet), source);
+                    responsesSent.incrementAndGet();
+                    unicastResponsesSent.incrementAndGet();
+                }
+                return;
+            }
+
+            long now = System.currentTimeMillis();
+            Map<ByteBuffer, Long> knownAnswers = knownAnswers(request);
+            HeldQuery held = heldQueries.remove(source);
+            if (held != null) {
+                if (request.getQuestionCount() == 0) {
+                    // More known answers for the truncated query this host sent just before
+                    held.knownAnswers.putAll(knownAnswers);
+                    if (request.isTruncated()) {
+                        heldQueries.put(source, held);
+                    } else {
+                        answer(held, now);
+                    }
+                    return;
+                }
+                answer(held, now);
+            }
+            if (request.getQuestionCount() == 0) return;
+
+            HeldQuery query = new HeldQuery(channel, source, routesTo(channel, source), request, knownAnswers);
+            if (request.isTruncated()) {
+                // RFC 6762 section 7.2: wait 400-500 ms for the rest of the known answers
+                query.due = now + TRUNCATED_QUERY_DELAY + random.nextInt(MAX_ANSWER_DELAY - MIN_ANSWER_DELAY + 1);
+                heldQueries.put(source, query);
+                return;
+            }
+            answer(query, now);
+        }
+
+        /**
+         * RFC 6762 section 8.2: when another host probes for a name we are probing too, the host proposing the
+         * lexicographically later records keeps probing and the other defers. Our own probes, looped back, compare
+         * equal and are ignored.
+         */
+        private void breakTies(Request request) {
+            Map<Registration, List<ByteBuffer>> proposals = null;
+            for (int i = 0; i < request.getAuthorityCount(); i++) {
+                try {
+                    Record record = request.getAuthorityRecord(i);
+                    Registration registration = probing.get(record.getName());
+                    if (registration == null) continue;
+                    ByteBuffer identity = AnswerIndex.identity(record, scratch);
+                    if (identity == null) continue;
+                    if (proposals == null) proposals = new HashMap<>();
+                    proposals.computeIfAbsent(registration, r -> new ArrayList<>()).add(identity);
+                } catch (RuntimeException e) {
+                    logger.debug("Skipping authority record {}: {}", i, e.getMessage());
+                }
+            }
+            if (proposals == null) return;
+            for (Map.Entry<Registration, List<ByteBuffer>> proposal : proposals.entrySet()) {
+                Registration registration = proposal.getKey();
+                List<ByteBuffer> ours = Arrays.asList(registration.srv.identity, registration.txt.identity);
+                if (compareProposals(ours, proposal.getValue(), registration.name.getWireLength()) < 0) {
+                    lostTieBreak(registration);
+                }
+            }
+        }
+
+        /**
+         * Compare two sets of proposed records for one name, each sorted, record by record; when one set runs out
+         * first, the set with records left is later.
+         *
+         * @param nameLength wire length of the name the identities start with
+         */
+        private int compareProposals(List<ByteBuffer> ours, List<ByteBuffer> theirs, int nameLength) {
+            Comparator<ByteBuffer> order = (a, b) -> compareRecords(a, b, nameLength);
+            List<ByteBuffer> left = new ArrayList<>(ours);
+            List<ByteBuffer> right = new ArrayList<>(theirs);
+            left.sort(order);
+            right.sort(order);
+            for (int i = 0; i < Math.min(left.size(), right.size()); i++) {
+                int result = order.compare(left.get(i), right.get(i));
+                if (result != 0) return result;
+            }
+            return Integer.compare(left.size(), right.size());
+        }
+
+        /**
+         * Order record identities by class, without the cache-flush bit, then type, then rdata as unsigned bytes.
+         */
+        private int compareRecords(ByteBuffer a, ByteBuffer b, int nameLength) {
+            int result = Integer.compare(a.getShort(nameLength + 2) & 0x7FFF, b.getShort(nameLength + 2) & 0x7FFF);
+            if (result != 0) return result;
+            result = Integer.compare(a.getShort(nameLength) & 0xFFFF, b.getShort(nameLength) & 0xFFFF);
+            if (result != 0) return result;
+            int rdata = nameLength + 10;
+            int length = Math.min(a.limit(), b.limit());
+            for (int i = rdata; i < length; i++) {
+                result = Integer.compare(a.get(i) & 0xFF, b.get(i) & 0xFF);
+                if (result != 0) return result;
+            }
+            return Integer.compare(a.limit(), b.limit());
+        }
+
+        /**
+         * Index the request's known answers by record identity, keeping their TTL.
+         */
+        private Map<ByteBuffer, Long> knownAnswers(Request request) {
+            if (request.getKnownAnswerCount() == 0) return new HashMap<>(4);
+            Map<ByteBuffer, Long> knownAnswers = new HashMap<>(2 * request.getKnownAnswerCount());
+            for (int i = 0; i < request.getKnownAnswerCount(); i++) {
+                try {
+                    Record record = request.getKnownAnswer(i);
+                    ByteBuffer identity = AnswerIndex.identity(record, scratch);
+                    if (identity != null) knownAnswers.put(identity, record.getTTL());
+                } catch (RuntimeException e) {
+                    // A record we can't decode is not one of ours
+                    logger.debug("Skipping known answer {}: {}", i, e.getMessage());
+                }
+            }
+            return knownAnswers;
+        }
+
+        /**
+         * Answer a query by unicast, or by joining the pending multicast reply of the interface it came from.
+         */
+        private void answer(HeldQuery query, long now) throws IOException {
+            answers.clear();
+            for (int i = 0; i < query.names.length; i++) {
+                AnswerIndex.Entry entry = index.get(query.names[i]);
+                if (entry == null) continue;
+                AnswerIndex.Answer[] matching = entry.get(query.types[i]);
+                Set<AnswerIndex.Answer> known = null;
+                for (AnswerIndex.Answer answer : matching) {
+                    if (isKnown(answer, query.knownAnswers)) {
+                        if (known == null) known = new HashSet<>();
+                        known.add(answer);
+                    }
+                }
+                if (query.unicastResponse[i] && multicastRecently(matching, query.routes, now)) {
+                    // RFC 6762 section 5.4: peers' caches are fresh, so only the querier needs the answers
+                    for (AnswerIndex.Answer answer : matching) {
+                        if (known == null || !known.contains(answer)) AnswerIndex.addOnce(answers, answer);
+                    }
+                    if (known != null) knownAnswersSuppressed.addAndGet(known.size());
+                    continue;
+                }
+                for (Route route : query.routes) {
+                    PendingReply reply = pendingReplies.get(route);
+                    if (reply == null) {
+                        reply = new PendingReply(now + MIN_ANSWER_DELAY
+                                + random.nextInt(MAX_ANSWER_DELAY - MIN_ANSWER_DELAY + 1));
+                        pendingReplies.put(route, reply);
+                    }
+                    reply.add(query.names[i], query.types[i], known);
+                }
+            }
+            if (answers.isEmpty()) return;
+            UnicastReply reply = unicastReplies.get(query.source);
+            if (reply == null) {
+                if (isUnique(answers)) {
+                    // RFC 6762 section 6: only this host can hold unique records, so no answer can collide
+                    send(query.channel, query.source, answers);
+                    return;
+                }
+                reply = new UnicastReply(query.channel, now + MIN_ANSWER_DELAY
+                        + random.nextInt(MAX_ANSWER_DELAY - MIN_ANSWER_DELAY + 1));
+                unicastReplies.put(query.source, reply);
+            }
+            for (AnswerIndex.Answer answer : answers) {
+                AnswerIndex.addOnce(reply.answers, answer);
+            }
+        }
+
+        /**
+         * @return true if every answer is a unique record, sent with the cache-flush bit
+         */
+        private boolean isUnique(List<AnswerIndex.Answer> answers) {
+            for (AnswerIndex.Answer answer : answers) {
+                if (!answer.record.isCacheFlush()) return false;
+            }
+            return true;
+        }
+
+        private void send(DatagramChannel channel, InetSocketAddress destination, List<AnswerIndex.Answer> answers)
+                throws IOException {
+            for (byte[] packet : packer.pack(index, answers, maxPacketSize, null)) {
+                channel.send(ByteBuffer.wrap(packet), destination);
+                responsesSent.incrementAndGet();
+                unicastResponsesSent.incrementAndGet();
+            }
+        }
+
+        /**
+         * RFC 6762 section 7.1: a known answer suppresses ours if it has at least half our TTL left.
+         */
+        private boolean isKnown(AnswerIndex.Answer answer, Map<ByteBuffer, Long> knownAnswers) {
+            if (knownAnswers.isEmpty()) return false;
+            Long ttl = knownAnswers.get(answer.identity);
+            return ttl != null && 2 * ttl >= answer.record.getTTL();
+        }
+
+        /**
+         * @param routes routes a multicast reply would go out on, which must all have seen the answers
+         * @return true if every answer was multicast on every route within the last quarter of its TTL
+         */
+        private boolean multicastRecently(AnswerIndex.Answer[] answers, List<Route> routes, long now) {
+            if (routes.isEmpty()) return false;
+            for (AnswerIndex.Answer answer : answers) {
+                long quarterTtl = TimeUnit.SECONDS.toMillis(answer.record.getTTL()) / 4;
+                for (Route route : routes) {
+                    if (now - answer.lastMulticastOn(route.id) > quarterTtl) return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return how long select may block before the next pending reply is due
+         */
+        private long selectTimeout() {
+            long timeout = SELECT_TIMEOUT;
+            long now = System.currentTimeMillis();
+            for (PendingReply reply : pendingReplies.values()) {
+                timeout = Math.min(timeout, Math.max(1, reply.due - now));
+            }
+            for (HeldQuery query : heldQueries.values()) {
+                timeout = Math.min(timeout, Math.max(1, query.due - now));
+            }
+            for (UnicastReply reply : unicastReplies.values()) {
+                timeout = Math.min(timeout, Math.max(1, reply.due - now));
+            }
+            return timeout;
+        }
+
+        private void sendDueReplies() throws IOException {
+            long now = System.currentTimeMillis();
+            if (!heldQueries.isEmpty()) {
+                // Truncated queries whose remaining known answers never came are answered with what arrived
+                Iterator<HeldQuery> queries = heldQueries.values().iterator();
+                while (queries.hasNext()) {
+                    HeldQuery query = queries.next();
+                    if (query.due > now) continue;
+                    queries.remove();
+                    answer(query, now);
+                }
+            }
+            if (!unicastReplies.isEmpty()) {
+                Iterator<Map.Entry<InetSocketAddress, UnicastReply>> unicast = unicastReplies.entrySet().iterator();
+                while (unicast.hasNext()) {
+                    Map.Entry<InetSocketAddress, UnicastReply> reply = unicast.next();
+                    if (reply.getValue().due > now) continue;
+                    unicast.remove();
+                    send(reply.getValue().channel, reply.getKey(), reply.getValue().answers);
+                }
+            }
+            if (pendingReplies.isEmpty()) return;
+            Iterator<Map.Entry<Route, PendingReply>> replies = pendingReplies.entrySet().iterator();
+            while (replies.hasNext()) {
+                Map.Entry<Route, PendingReply> reply = replies.next();
+                if (reply.getValue().due > now) continue;
+                replies.remove();
+                send(reply.getKey(), reply.getValue(), now);
+            }
+        }
+
+        private void send(Route route, PendingReply reply, long now) throws IOException {
+            // Read before the entries, so replies built from a changing index are cached as already stale
+            long generation = index.getGeneration();
+            byte[][] packets = null;
+            answers.clear();
+            if (reply.names.size() == 1 && reply.known.get(0) == null) {
+                // The common case: one question, answered from the reply cache unless the rate limit trims it
+                AnswerIndex.Entry entry = index.get(reply.names.get(0));
+                if (entry == null) return;
+                int type = reply.types.get(0);
+                Collections.addAll(answers, entry.get(type));
+                if (!removeRecentlyMulticast(route, now)) {
+                    packets = entry.getPackets(type, generation);
+                    if (packets == null) {
+                        packets = packer.pack(index, answers, maxPacketSize, null);
+                        entry.putPackets(type, generation, packets);
+                    }
+                }
+            } else {
+                for (int i = 0; i < reply.names.size(); i++) {
+                    AnswerIndex.Entry entry = index.get(reply.names.get(i));
+                    if (entry == null) continue;
+                    Set<AnswerIndex.Answer> known = reply.known.get(i);
+                    for (AnswerIndex.Answer answer : entry.get(reply.types.get(i))) {
+                        if (known != null && known.contains(answer)) {
+                            knownAnswersSuppressed.incrementAndGet();
+                            continue;
+                        }
+                        AnswerIndex.addOnce(answers, answer);
+                    }
+                }
+                removeRecentlyMulticast(route, now);
+            }
+            if (answers.isEmpty()) return;
+            if (packets == null) {
+                packets = packer.pack(index, answers, maxPacketSize, null);
+            }
+
+            for (AnswerIndex.Answer answer : answers) {
+                answer.multicastOn(route.id, now);
+            }
+            for (byte[] packet : packets) {
+                route.send(packet);
+                responsesSent.incrementAndGet();
+            }
+        }
+
+        /**
+         * Drop the answers multicast on the route less than a second ago.
+         *
+         * @return true if any answer was dropped
+         */
+        private boolean removeRecentlyMulticast(Route route, long now) {
+            int kept = 0;
+            for (AnswerIndex.Answer answer : answers) {
+                if (now - answer.lastMulticastOn(route.id) < RECORD_MULTICAST_INTERVAL) continue;
+                answers.set(kept++, answer);
+            }
+            int suppressed = answers.size() - kept;
+            if (suppressed == 0) return false;
+            answersSuppressed.addAndGet(suppressed);
+            answers.subList(kept, answers.size()).clear();
+            return true;
+        }
+
+        /**
+         * A response from another host holding a name we are probing means the name is taken.
+         */
+        private void checkConflicts() {
+            buffer.rewind();
+            Response response = Response.createLazyFrom(buffer);
+            for (int i = 0; i < response.getRecordCount(); i++) {
+                Registration registration = probing.get(response.getRecordName(i));
+                if (registration != null) conflict(registration);
+            }
+        }
+
+        private void close() {
+            for (DatagramChannel channel : channels.keySet()) {
+                MulticastChannels.closeQuietly(channel);
+            }
+            channels.clear();
+            routes = Collections.emptyList();
+            BufferPool.DIRECT.release(buffer);
+            buffer = null;
+            pendingReplies.clear();
+            unicastReplies.clear();
+            heldQueries.clear();
+            if (selector != null) {
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    logger.debug(e.getMessage());
+                }
+                selector = null;
+            }
+        }
+
+        /**
+         * Questions waiting to be answered on one route, and when.
+         */
+        private final class PendingReply {
+            private final long due; // [ms]
+            private final List<DnsName> names = new ArrayList<>();
+            private final List<Integer> types = new ArrayList<>();
+            // Answers every querier of the question already holds, or null
+            private final List<Set<AnswerIndex.Answer>> known = new ArrayList<>();
+
+            PendingReply(long due) {
+                this.due = due;
+            }
+
+            /**
+             * @param knownAnswers answers this querier already holds, or null
+             */
+            void add(DnsName name, int type, Set<AnswerIndex.Answer> knownAnswers) {
+                for (int i = 0; i < names.size(); i++) {
+                    if (types.get(i) == type && names.get(i).equals(name)) {
+                        // An answer is only left out if no querier lacks it
+                        Set<AnswerIndex.Answer> previous = known.get(i);
+                        if (previous != null && knownAnswers != null) {
+                            previous.retainAll(knownAnswers);
+                        } else {
+                            known.set(i, null);
+                        }
+                        return;
+                    }
+                }
+                names.add(name);
+                types.add(type);
+                known.add(knownAnswers);
+            }
+        }
+
+        /**
+         * Answers waiting to be sent by unicast to one querier, and when; later QU questions from the same querier
+         * join them.
+         */
+        private final class UnicastReply {
+            private final DatagramChannel channel;
+            private final long due; // [ms]
+            private final List<AnswerIndex.Answer> answers = new ArrayList<>();
+
+            UnicastReply(DatagramChannel channel, long due) {
+                this.channel = channel;
+                this.due = due;
+            }
+        }
+
+        /**
+         * A query's questions and known answers, held while a truncated query waits for the rest of its known
+         * answers.
+         */
+        private final class HeldQuery {
+            private final DatagramChannel channel;
+            private final InetSocketAddress source;
+            private final List<Route> routes; // where a multicast reply goes
+            private final DnsName[] names;
+            private final int[] types;
+            private final boolean[] unicastResponse;
+            private final Map<ByteBuffer, Long> knownAnswers;
+            private long due; // [ms]
+
+            HeldQuery(DatagramChannel channel, InetSocketAddress source, List<Route> routes, Request request,
+                      Map<ByteBuffer, Long> knownAnswers) {
+                this.channel = channel;
+                this.source = source;
+                this.routes = routes;
+                this.knownAnswers = knownAnswers;
+                int count = 0;
+                for (int i = 0; i < request.getQuestionCount(); i++) {
+                    if (request.getQuestionClass(i) != Question.QClass.UNSUPPORTED) count++;
+                }
+                names = new DnsName[count];
+                types = new int[count];
+                unicastResponse = new boolean[count];
+                count = 0;
+                for (int i = 0; i < request.getQuestionCount(); i++) {
+                    if (request.getQuestionClass(i) == Question.QClass.UNSUPPORTED) continue;
+                    names[count] = request.getQuestionName(i);
+                    types[count] = request.getQuestionType(i);
+                    unicastResponse[count++] = request.isUnicastResponse(i);
+                }
+            }
+        }
+
+        /**
+         * A channel's group on one interface, where multicast goes out. Equal to the route rebuilt for the same
+         * channel and interface when the interfaces are listed again, so replies pending on it carry over.
+         */
+        private final class Route {
+            private final DatagramChannel channel;
+            private final InetSocketAddress group;
+            private final NetworkInterface networkInterface;
+            private final int id; // index of the route's send time in answers
+
+            Route(DatagramChannel channel, InetSocketAddress group, NetworkInterface networkInterface, int id) {
+                this.channel = channel;
+                this.group = group;
+                this.networkInterface = networkInterface;
+                this.id = id;
+            }
+
+            void send(byte[] packet) throws IOException {
+                MulticastChannels.send(channel, networkInterface, ByteBuffer.wrap(packet), group);
+            }
+
+            /**
+             * Interfaces are compared by index, which holds while their addresses change.
+             */
+            boolean isOn(NetworkInterface other) {
+                return other != null && networkInterface.getIndex() == other.getIndex();
+            }
+
+            @Override
+            public boolean equals(Object o) {
+                if (!(o instanceof Route)) return false;
+                Route route = (Route) o;
+                return channel == route.channel && isOn(route.networkInterface);
+            }
+
+            @Override
+            public int hashCode() {
+                return 31 * channel.hashCode() + networkInterface.getIndex();
+            }
+
+            @Override
+            public String toString() {
+                return networkInterface.getName() + " to " + group;
+            }
+        }
+    }
 }
@@ -0,0 +1,202 @@
+package ch.unitelabs.mdns.sd;
+
+import ch.unitelabs.mdns.dns.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Opens the non-blocking multicast channels shared by the browser and the responder.
+ */
+final class MulticastChannels {
+    private final static Logger logger = LoggerFactory.getLogger(MulticastChannels.class);
+
+    static final String MDNS_IP4_ADDRESS = "224.0.0.251";
+    static final String MDNS_IP6_ADDRESS = "FF02::FB";
+    static final int MDNS_PORT = 5353;
+    private static final int IP6_UDP_HEADER_LENGTH = 40 + 8;
+
+    private MulticastChannels() {
+    }
+
+    /**
+     * Bind a channel to the mDNS port, join the group on every multicast-capable interface that is up, and
+     * register it for reads. The key's attachment is the group's socket address, where multicast replies go.
+     *
+     * @return the channel, already registered with the selector
+     * @throws IOException if the channel can't be bound or no interface could join the group
+     */
+    static DatagramChannel open(Selector selector, ProtocolFamily family, InetAddress group, int port) throws IOException {
+        DatagramChannel channel;
+        try {
+            channel = DatagramChannel.open(family);
+        } catch (UnsupportedOperationException e) {
+            // e.g. IPv6 disabled on this host
+            throw new IOException(e.getMessage());
+        }
+        try {
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            channel.bind(new InetSocketAddress(port));
+            channel.configureBlocking(false);
+
+            int joined = 0;
+            for (NetworkInterface networkInterface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+                if (!networkInterface.isUp() || !networkInterface.supportsMulticast()) continue;
+                try {
+                    channel.join(group, networkInterface);
+                    joined++;
+                } catch (IOException e) {
+                    logger.debug("Could not join {} on {}: {}", group, networkInterface.getName(), e.getMessage());
+                }
+            }
+            if (joined == 0) throw new IOException("No interface could join " + group);
+
+            channel.register(selector, SelectionKey.OP_READ, new InetSocketAddress(group, port));
+            return channel;
+        } catch (IOException e) {
+            closeQuietly(channel);
+            throw e;
+        }
+    }
+
+    /**
+     * Largest UDP payload that leaves every multicast-capable interface unfragmented, assuming IPv6 headers.
+     *
+     * @return payload size in bytes, at most {@link Message#MAX_LENGTH}
+     */
+    static int maxPayload() {
+        int mtu = Message.MAX_LENGTH + IP6_UDP_HEADER_LENGTH;
+        try {
+            for (NetworkInterface networkInterface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+                if (!networkInterface.isUp() || !networkInterface.supportsMulticast()) continue;
+                if (networkInterface.getMTU() > IP6_UDP_HEADER_LENGTH) mtu = Math.min(mtu, networkInterface.getMTU());
+            }
+        } catch (SocketException e) {
+            logger.debug(e.getMessage());
+        }
+        return mtu - IP6_UDP_HEADER_LENGTH;
+    }
+
+    /**
+     * Send a datagram out of the given interface. The channel's outgoing multicast interface is set and the datagram
+     * sent under the channel's lock, so threads sharing the channel can't redirect each other's packets.
+     */
+    static void send(DatagramChannel channel, NetworkInterface networkInterface, ByteBuffer packet,
+                     SocketAddress target) throws IOException {
+        synchronized (channel) {
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+            channel.send(packet, target);
+        }
+    }
+
+    static void closeQuietly(DatagramChannel channel) {
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.debug(e.getMessage());
+        }
+    }
+
+    /**
+     * The multicast-capable interfaces that are up, with their addresses, as of one point in time: where multicast
+     * goes out, and which link a sender is on.
+     */
+    static final class Links {
+        private final List<NetworkInterface> outgoing = new ArrayList<>();
+        private final List<NetworkInterface> owners = new ArrayList<>();
+        private final List<InterfaceAddress> addresses = new ArrayList<>();
+
+        static Links read() {
+            Links links = new Links();
+            List<NetworkInterface> loopback = new ArrayList<>();
+            try {
+                for (NetworkInterface networkInterface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+                    if (!networkInterface.isUp() || !networkInterface.supportsMulticast()) continue;
+                    (networkInterface.isLoopback() ? loopback : links.outgoing).add(networkInterface);
+                    for (InterfaceAddress address : networkInterface.getInterfaceAddresses()) {
+                        links.owners.add(networkInterface);
+                        links.addresses.add(address);
+                    }
+                }
+            } catch (SocketException e) {
+                logger.debug(e.getMessage());
+            }
+            // Local peers see what goes out of any interface, loopback only matters on a host with nothing else
+            if (links.outgoing.isEmpty()) links.outgoing.addAll(loopback);
+            return links;
+        }
+
+        /**
+         * @return the interfaces to multicast out of, loopback left out unless there is nothing else
+         */
+        List<NetworkInterface> getOutgoing() {
+            return outgoing;
+        }
+
+        /**
+         * @return true if the interface has an address of the group's family, so it can send to the group
+         */
+        boolean canReach(NetworkInterface networkInterface, InetAddress group) {
+            for (int i = 0; i < owners.size(); i++) {
+                if (owners.get(i).equals(networkInterface)
+                        && addresses.get(i).getAddress().getClass() == group.getClass()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * mDNS senders are on-link, so the link is the interface with a subnet holding the source address, or the
+         * scope of a link-local IPv6 address.
+         *
+         * @return the interface the sender is reached through, or null if none can be told
+         */
+        NetworkInterface find(InetAddress source) {
+            if (source instanceof Inet6Address && ((Inet6Address) source).getScopeId() != 0) {
+                int scope = ((Inet6Address) source).getScopeId();
+                for (NetworkInterface owner : owners) {
+                    if (owner.getIndex() == scope) return owner;
+                }
+            }
+            byte[] bits = source.getAddress();
+            for (int i = 0; i < addresses.size(); i++) {
+                InterfaceAddress address = addresses.get(i);
+                if (sameSubnet(bits, address.getAddress().getAddress(), address.getNetworkPrefixLength())) {
+                    return owners.get(i);
+                }
+            }
+            return null;
+        }
+
+        private static boolean sameSubnet(byte[] a, byte[] b, int prefixLength) {
+            if (a.length != b.length || prefixLength < 0 || prefixLength > 8 * a.length) return false;
+            int bytes = prefixLength / 8;
+            for (int i = 0; i < bytes; i++) {
+                if (a[i] != b[i]) return false;
+            }
+            int bits = prefixLength % 8;
+            if (bits == 0) return true;
+            int mask = (0xFF << (8 - bits)) & 0xFF;
+            return ((a[bytes] ^ b[bytes]) & mask) == 0;
+        }
+    }
+}
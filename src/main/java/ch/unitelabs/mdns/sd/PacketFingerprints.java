@@ -0,0 +1,58 @@
+package ch.unitelabs.mdns.sd;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Short-lived table of recently decoded packets, keyed by {@link ch.unitelabs.mdns.dns.Response#getFingerprint()}.
+ * <p>
+ * Direct-mapped: a colliding fingerprint simply evicts the previous entry, which only costs a full decode.
+ * Shared by the parser workers: entries are immutable and replaced as a whole, so a lost race costs the same.
+ */
+final class PacketFingerprints {
+    private final static int SIZE = 256; // power of two
+    private final static int MASK = SIZE - 1;
+
+    private final long windowMillis;
+    private final AtomicReferenceArray<Entry> entries = new AtomicReferenceArray<>(SIZE);
+
+    /**
+     * @param windowMillis how long an entry stays valid after the packet was decoded
+     */
+    PacketFingerprints(long windowMillis) {
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * @return the entry holding this fingerprint, or null if it is unknown or has expired
+     */
+    Entry find(long fingerprint, long now) {
+        Entry entry = entries.get(slot(fingerprint));
+        if (entry != null && entry.fingerprint == fingerprint && entry.expiry - now > 0) {
+            return entry;
+        }
+        return null;
+    }
+
+    void put(long fingerprint, String instanceName, int ttlIndex, long now) {
+        entries.lazySet(slot(fingerprint), new Entry(fingerprint, now + windowMillis, instanceName, ttlIndex));
+    }
+
+    private static int slot(long fingerprint) {
+        return (int) (fingerprint ^ (fingerprint >>> 32)) & MASK;
+    }
+
+    static final class Entry {
+        private final long fingerprint;
+        private final long expiry;
+        final String instanceName;
+        /** Index of the record whose TTL is the instance's TTL. */
+        final int ttlIndex;
+
+        private Entry(long fingerprint, long expiry, String instanceName, int ttlIndex) {
+            this.fingerprint = fingerprint;
+            this.expiry = expiry;
+            this.instanceName = instanceName;
+            this.ttlIndex = ttlIndex;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package ch.unitelabs.mdns.sd;
+
+import ch.unitelabs.mdns.dns.Message;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Preallocated ring of datagram slots between the packet receiver and the parser workers.
+ * <p>
+ * The single producer receives straight into the next free slot, so nothing is copied or allocated per packet.
+ * Any number of consumers claim published slots in receive order and hand them back once parsed. A slot carries
+ * its receive sequence number, which lets consumers that finish out of order still apply packets in order.
+ * When every slot is busy the receiver drops the datagram rather than block, as a full socket buffer would.
+ */
+final class PacketRing {
+    /**
+     * Size of a slot: one byte over the RFC 6762 cap, so a datagram that breaks it fills more than
+     * {@link Message#MAX_LENGTH} bytes and can be told apart from one that is cut at the cap.
+     */
+    static final int SLOT_LENGTH = Message.MAX_LENGTH + 1;
+
+    private final Slot[] slots;
+    private final int mask;
+    private long head; // next sequence to publish, only used by the producer
+    private final AtomicLong tail = new AtomicLong(); // next sequence to claim
+    private final Semaphore published = new Semaphore(0); // one permit per published, unclaimed slot
+
+    /**
+     * @param capacity number of slots, rounded up to a power of two; each holds a {@link #SLOT_LENGTH} byte
+     *                 datagram
+     */
+    PacketRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        // One direct allocation for the whole ring, so receiving into a slot needs no temporary buffer
+        ByteBuffer memory = ByteBuffer.allocateDirect(size * SLOT_LENGTH);
+        slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            memory.limit((i + 1) * SLOT_LENGTH).position(i * SLOT_LENGTH);
+            slots[i] = new Slot(memory.slice(), i);
+        }
+        mask = size - 1;
+    }
+
+    int capacity() {
+        return slots.length;
+    }
+
+    /**
+     * Producer only: the buffer of the next free slot, cleared, to receive a datagram into. Nothing is published
+     * until {@link #publish(InetSocketAddress)}, so the same buffer is returned again if no datagram arrived.
+     *
+     * @return the buffer, or null if every slot is still being parsed
+     */
+    ByteBuffer claim() {
+        Slot slot = slots[(int) head & mask];
+        if (slot.state != head) return null;
+        slot.buffer.clear();
+        return slot.buffer;
+    }
+
+    /**
+     * Producer only: hand the datagram received into the claimed buffer to the consumers.
+     *
+     * @param source address the datagram came from
+     */
+    void publish(InetSocketAddress source) {
+        Slot slot = slots[(int) head & mask];
+        slot.buffer.flip();
+        slot.source = source;
+        slot.sequence = head;
+        slot.state = head + 1;
+        head++;
+        published.release();
+    }
+
+    /**
+     * Wait for the oldest unclaimed datagram. The slot must be given back with {@link #release(Slot)}.
+     *
+     * @return the claimed slot
+     * @throws InterruptedException if the consumer is stopped while waiting
+     */
+    Slot take() throws InterruptedException {
+        published.acquire();
+        while (true) {
+            // Holding a permit guarantees the slot at the tail is published; only other consumers compete for it
+            long sequence = tail.get();
+            Slot slot = slots[(int) sequence & mask];
+            if (slot.state == sequence + 1 && tail.compareAndSet(sequence, sequence + 1)) return slot;
+        }
+    }
+
+    /**
+     * Give a parsed slot back to the producer. Its buffer must not be used afterwards.
+     */
+    void release(Slot slot) {
+        slot.state = slot.sequence + slots.length;
+    }
+
+    /**
+     * A datagram buffer with its source, owned by the producer until published and by one consumer until
+     * released.
+     */
+    static final class Slot {
+        final ByteBuffer buffer;
+        InetSocketAddress source;
+        long sequence;
+        // Sequence the producer may publish next when equal to it, published when one above; fields are
+        // handed over through this write
+        private volatile long state;
+
+        private Slot(ByteBuffer buffer, long state) {
+            this.buffer = buffer;
+            this.state = state;
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package ch.unitelabs.mdns.sd;
+
+import java.util.*;
+
+/**
+ * Immutable hash map whose updates return a new map sharing all but the changed path with the old one.
+ * <p>
+ * A hash array mapped trie: each level indexes five bits of the hash into a bitmap-compressed array, so an update
+ * copies a handful of small arrays, however many entries the map holds. Keys whose full hashes are equal share a
+ * collision node. The map can be handed to any thread as is; the {@link Map} mutators throw.
+ *
+ * @param <K> type of the keys
+ * @param <V> type of the values
+ */
+final class PersistentMap<K, V> extends AbstractMap<K, V> {
+    private static final PersistentMap<?, ?> EMPTY = new PersistentMap<>(null, 0);
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    // null when empty, else a Leaf, a Branch or a Collision
+    private final Object root;
+    private final int size;
+
+    private PersistentMap(Object root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <K, V> PersistentMap<K, V> empty() {
+        return (PersistentMap<K, V>) EMPTY;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        Leaf leaf = find(key);
+        return leaf == null ? null : (V) leaf.getValue();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return find(key) != null;
+    }
+
+    /**
+     * @return a map with the key mapped to value, this map if it already was
+     */
+    PersistentMap<K, V> plus(K key, V value) {
+        int hash = hash(key);
+        boolean[] added = new boolean[1];
+        Object updated = put(root, hash, 0, new Leaf(hash, key, value), added);
+        return updated == root ? this : new PersistentMap<>(updated, added[0] ? size + 1 : size);
+    }
+
+    /**
+     * @return a map without the key, this map if it had none
+     */
+    PersistentMap<K, V> minus(Object key) {
+        Object updated = remove(root, hash(key), 0, key);
+        if (updated == root) return this;
+        return updated == null ? empty() : new PersistentMap<>(updated, size - 1);
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        return new AbstractSet<Entry<K, V>>() {
+            @Override
+            public Iterator<Entry<K, V>> iterator() {
+                return new EntryIterator<>(root);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    private static int hash(Object key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private Leaf find(Object key) {
+        int hash = hash(key);
+        Object node = root;
+        for (int shift = 0; ; shift += BITS) {
+            if (node instanceof Branch) {
+                Branch branch = (Branch) node;
+                int bit = 1 << ((hash >>> shift) & MASK);
+                if ((branch.bitmap & bit) == 0) return null;
+                node = branch.children[branch.index(bit)];
+            } else if (node instanceof Leaf) {
+                Leaf leaf = (Leaf) node;
+                return leaf.hash == hash && leaf.getKey().equals(key) ? leaf : null;
+            } else if (node instanceof Collision) {
+                Collision collision = (Collision) node;
+                return collision.hash == hash ? collision.find(key) : null;
+            } else {
+                return null;
+            }
+        }
+    }
+
+    private static Object put(Object node, int hash, int shift, Leaf leaf, boolean[] added) {
+        if (node == null) {
+            added[0] = true;
+            return leaf;
+        }
+        if (node instanceof Leaf) {
+            Leaf existing = (Leaf) node;
+            if (existing.hash != hash) {
+                added[0] = true;
+                return split(existing, leaf, shift);
+            }
+            if (existing.getKey().equals(leaf.getKey())) {
+                return existing.getValue() == leaf.getValue() ? existing : leaf;
+            }
+            added[0] = true;
+            return new Collision(hash, new Leaf[]{existing, leaf});
+        }
+        if (node instanceof Collision) {
+            Collision collision = (Collision) node;
+            if (collision.hash != hash) {
+                // Push the collision one level down, under a branch that can take the new leaf beside it
+                Branch branch = new Branch(1 << ((collision.hash >>> shift) & MASK), new Object[]{collision});
+                return put(branch, hash, shift, leaf, added);
+            }
+            return collision.put(leaf, added);
+        }
+        Branch branch = (Branch) node;
+        int bit = 1 << ((hash >>> shift) & MASK);
+        int index = branch.index(bit);
+        if ((branch.bitmap & bit) == 0) {
+            added[0] = true;
+            Object[] children = new Object[branch.children.length + 1];
+            System.arraycopy(branch.children, 0, children, 0, index);
+            children[index] = leaf;
+            System.arraycopy(branch.children, index, children, index + 1, branch.children.length - index);
+            return new Branch(branch.bitmap | bit, children);
+        }
+        Object child = branch.children[index];
+        Object updated = put(child, hash, shift + BITS, leaf, added);
+        return updated == child ? branch : branch.with(index, updated);
+    }
+
+    /**
+     * @return a node holding two leaves with different hashes, branching where their hashes part
+     */
+    private static Object split(Leaf a, Leaf b, int shift) {
+        int bitA = 1 << ((a.hash >>> shift) & MASK);
+        int bitB = 1 << ((b.hash >>> shift) & MASK);
+        if (bitA == bitB) {
+            return new Branch(bitA, new Object[]{split(a, b, shift + BITS)});
+        }
+        Object[] children = Integer.compareUnsigned(bitA, bitB) < 0 ? new Object[]{a, b} : new Object[]{b, a};
+        return new Branch(bitA | bitB, children);
+    }
+
+    private static Object remove(Object node, int hash, int shift, Object key) {
+        if (node instanceof Leaf) {
+            Leaf leaf = (Leaf) node;
+            return leaf.hash == hash && leaf.getKey().equals(key) ? null : node;
+        }
+        if (node instanceof Collision) {
+            Collision collision = (Collision) node;
+            return collision.hash == hash ? collision.remove(key) : node;
+        }
+        if (node == null) return null;
+        Branch branch = (Branch) node;
+        int bit = 1 << ((hash >>> shift) & MASK);
+        if ((branch.bitmap & bit) == 0) return node;
+        int index = branch.index(bit);
+        Object child = branch.children[index];
+        Object updated = remove(child, hash, shift + BITS, key);
+        if (updated == child) return node;
+        if (updated != null) {
+            // A lone leaf or collision needs no branch above it, lookups compare full hashes
+            if (branch.children.length == 1 && !(updated instanceof Branch)) return updated;
+            return branch.with(index, updated);
+        }
+        if (branch.children.length == 1) return null;
+        Object[] children = new Object[branch.children.length - 1];
+        System.arraycopy(branch.children, 0, children, 0, index);
+        System.arraycopy(branch.children, index + 1, children, index, children.length - index);
+        if (children.length == 1 && !(children[0] instanceof Branch)) return children[0];
+        return new Branch(branch.bitmap & ~bit, children);
+    }
+
+    private static final class Leaf extends SimpleImmutableEntry<Object, Object> {
+        final int hash;
+
+        Leaf(int hash, Object key, Object value) {
+            super(key, value);
+            this.hash = hash;
+        }
+    }
+
+    private static final class Branch {
+        final int bitmap; // one bit per five-bit hash chunk present
+        final Object[] children; // in bit order
+
+        Branch(int bitmap, Object[] children) {
+            this.bitmap = bitmap;
+            this.children = children;
+        }
+
+        int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        Branch with(int index, Object child) {
+            Object[] copy = children.clone();
+            copy[index] = child;
+            return new Branch(bitmap, copy);
+        }
+    }
+
+    private static final class Collision {
+        final int hash;
+        final Leaf[] leaves;
+
+        Collision(int hash, Leaf[] leaves) {
+            this.hash = hash;
+            this.leaves = leaves;
+        }
+
+        Leaf find(Object key) {
+            for (Leaf leaf : leaves) {
+                if (leaf.getKey().equals(key)) return leaf;
+            }
+            return null;
+        }
+
+        Object put(Leaf leaf, boolean[] added) {
+            for (int i = 0; i < leaves.length; i++) {
+                if (leaves[i].getKey().equals(leaf.getKey())) {
+                    if (leaves[i].getValue() == leaf.getValue()) return this;
+                    Leaf[] copy = leaves.clone();
+                    copy[i] = leaf;
+                    return new Collision(hash, copy);
+                }
+            }
+            added[0] = true;
+            Leaf[] copy = Arrays.copyOf(leaves, leaves.length + 1);
+            copy[leaves.length] = leaf;
+            return new Collision(hash, copy);
+        }
+
+        Object remove(Object key) {
+            for (int i = 0; i < leaves.length; i++) {
+                if (leaves[i].getKey().equals(key)) {
+                    if (leaves.length == 2) return leaves[1 - i];
+                    Leaf[] copy = new Leaf[leaves.length - 1];
+                    System.arraycopy(leaves, 0, copy, 0, i);
+                    System.arraycopy(leaves, i + 1, copy, i, copy.length - i);
+                    return new Collision(hash, copy);
+                }
+            }
+            return this;
+        }
+    }
+
+    /**
+     * Depth-first walk over the trie, with an explicit stack of the arrays being visited.
+     */
+    private static final class EntryIterator<K, V> implements Iterator<Entry<K, V>> {
+        private final ArrayDeque<Object[]> arrays = new ArrayDeque<>();
+        private final ArrayDeque<Integer> positions = new ArrayDeque<>();
+        private Leaf next;
+
+        EntryIterator(Object root) {
+            if (root != null) push(new Object[]{root});
+            advance();
+        }
+
+        private void push(Object[] array) {
+            arrays.push(array);
+            positions.push(0);
+        }
+
+        private void advance() {
+            next = null;
+            while (next == null && !arrays.isEmpty()) {
+                Object[] array = arrays.peek();
+                int position = positions.pop();
+                if (position == array.length) {
+                    arrays.pop();
+                    continue;
+                }
+                positions.push(position + 1);
+                Object node = array[position];
+                if (node instanceof Leaf) {
+                    next = (Leaf) node;
+                } else if (node instanceof Branch) {
+                    push(((Branch) node).children);
+                } else {
+                    push(((Collision) node).leaves);
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Entry<K, V> next() {
+            if (next == null) throw new NoSuchElementException();
+            Entry<K, V> entry = (Entry<K, V>) (Entry<?, ?>) next;
+            advance();
+            return entry;
+        }
+    }
+}
@@ -26,13 +26,15 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.stream.Collectors;
 
 public class Query {
     private final Service service;
@@ -49,8 +51,14 @@ public class Query {
     private Set<Question> questions;
     private Set<Instance> instances;
     private Set<Record> records;
+    // Names of the SRV, TXT and address records received so far, to find missing ones without scanning records
+    private final Set<DnsName> srvNames = new HashSet<>();
+    private final Set<DnsName> txtNames = new HashSet<>();
+    private final Set<DnsName> addressNames = new HashSet<>();
     private boolean listenerStarted;
     private boolean listenerFinished;
+    private List<? extends Record> knownAnswers = Collections.emptyList();
+    private QueryPacker packer;
 
     private final static Logger logger = LoggerFactory.getLogger(Query.class);
 
@@ -111,7 +119,8 @@ public class Query {
 
     public Set<Instance> runMe(InetAddress ia) throws IOException {
         logger.debug("Running query on {}", ia);
-        initialQuestion = new Question(service, domain);
+        // A one-off lookup asks for unicast replies, which only this socket has to parse
+        initialQuestion = new Question(service, domain, true);
         instances = Collections.synchronizedSet(new HashSet<>());
         try {
             Thread listener = null;
@@ -145,7 +154,8 @@ public class Query {
      */
     public Set<Instance> runOnceOn(InetAddress localhost) throws IOException {
         logger.debug("Running query on {}", localhost);
-        initialQuestion = new Question(service, domain);
+        // A one-off lookup asks for unicast replies, which only this socket has to parse
+        initialQuestion = new Question(service, domain, true);
         instances = Collections.synchronizedSet(new HashSet<>());
         try {
             Thread listener = null;
@@ -204,6 +214,12 @@ public class Query {
         }
 
         questions.add(question);
+        List<Record> known = knownAnswersFor(Collections.singletonList(question));
+        if (!known.isEmpty()) {
+            logger.debug("Asking question {} with {} known answers", question, known.size());
+            send(Collections.singletonList(question), known);
+            return;
+        }
         if (isUsingIPv4) {
             question.askOn(socket, mdnsGroupIPv4);
         }
@@ -212,6 +228,49 @@ public class Query {
         }
     }
 
+    /**
+     * Records already held by the caller, listed as known answers in questions they answer (RFC 6762 section 7.1)
+     * so responders don't repeat them.
+     *
+     * @param knownAnswers records with their remaining TTL, which should be more than half the original
+     */
+    void setKnownAnswers(List<? extends Record> knownAnswers) {
+        this.knownAnswers = knownAnswers;
+    }
+
+    /**
+     * Ask several questions at once, in as few packets as they fit.
+     */
+    private void ask(List<Question> batch) throws IOException {
+        logger.debug("Asking {} questions", batch.size());
+        send(batch, knownAnswersFor(batch));
+    }
+
+    private List<Record> knownAnswersFor(List<Question> batch) {
+        List<Record> known = new ArrayList<>();
+        for (Record record : knownAnswers) {
+            for (Question question : batch) {
+                if (question.answeredBy(record)) {
+                    known.add(record);
+                    break;
+                }
+            }
+        }
+        return known;
+    }
+
+    private void send(List<Question> batch, List<Record> known) throws IOException {
+        if (packer == null) packer = new QueryPacker();
+        for (byte[] packet : packer.pack(batch, known, MulticastChannels.maxPayload())) {
+            if (isUsingIPv4) {
+                socket.send(new DatagramPacket(packet, packet.length, mdnsGroupIPv4, MDNS_PORT));
+            }
+            if (isUsingIPv6) {
+                socket.send(new DatagramPacket(packet, packet.length, mdnsGroupIPv6, MDNS_PORT));
+            }
+        }
+    }
+
     private boolean isServerIsListening() {
         boolean retval;
         try {
@@ -280,28 +339,30 @@ public class Query {
         listenerStarted = true;
         listenerFinished = false;
         socketLock.unlock();
+        // Responses are decoded before the next receive, so one pooled buffer serves the whole run
+        ByteBuffer responseBuffer = BufferPool.HEAP.acquire();
+        DatagramPacket responsePacket = new DatagramPacket(responseBuffer.array(), responseBuffer.capacity());
         for (int timeouts = 0; timeouts == 0 && currentTime - startTime < browsingTimeout; ) {
-            byte[] responseBuffer = new byte[Message.MAX_LENGTH];
-            DatagramPacket responsePacket = new DatagramPacket(responseBuffer, responseBuffer.length);
+            responsePacket.setLength(responseBuffer.capacity());
             try {
                 // logger.debug("Listening for responses...");
-                if (socket == null) return null;
+                if (socket == null) {
+                    BufferPool.HEAP.release(responseBuffer);
+                    return null;
+                }
                 try {
                     socket.receive(responsePacket);
                 } catch (Exception e) {
                     // logger.debug(e.getMessage());
+                    // Nothing was received, the pooled buffer still holds an earlier packet
+                    currentTime = System.currentTimeMillis();
+                    continue;
                 }
                 currentTime = System.currentTimeMillis();
                 //Utils.dumpPacket(responsePacket, "response");
                 // logger.debug("Response received!");
 //                logger.debug("Response of length {} at offset {}: {}", responsePacket.getLength(), responsePacket.getOffset(), responsePacket.getData());
-                try {
-                    parseResponsePacket(responsePacket);
-                } catch (IllegalArgumentException e) {
-                    logger.debug("Response was not a mDNS response packet, ignoring it");
-                    timeouts = 0;
-                    continue;
-                }
+                parseResponsePacket(responsePacket);
                 timeouts = 0;
             } catch (SocketTimeoutException e) {
                 timeouts++;
@@ -309,6 +370,7 @@ public class Query {
                 logger.error("IOException while listening for mDNS responses: ", e);
             }
         }
+        BufferPool.HEAP.release(responseBuffer);
         socketLock.lock();
         listenerFinished = true;
         socketLock.unlock();
@@ -318,9 +380,14 @@ public class Query {
 
     public void parseResponsePacket(DatagramPacket packet) throws IOException {
         Response response = Response.createFrom(packet);
+        if (!response.isValid()) {
+            // logger.debug("Response was not a mDNS response packet, ignoring it");
+            return;
+        }
         if (response.answers(questions)) {
-            records.addAll(response.getRecords());
-            fetchMissingRecords();
+            Set<Record> received = response.getRecords();
+            records.addAll(received);
+            fetchMissingRecords(received);
         } else {
             // This response isn't related to any of the questions we asked
             // logger.debug("This response doesn't answer any of our questions, ignoring it.");
@@ -328,68 +395,50 @@ public class Query {
     }
 
     /**
-     * Verify that each PTR record has corresponding SRV, TXT, and either A or AAAA records.
-     * Request any that are missing.
+     * Verify that each PTR record just received has corresponding SRV and TXT records, and each SRV record either A
+     * or AAAA records. Request any that are missing, all in one multi-question packet.
+     * <p>
+     * Only the records just received are checked, against names indexed as records arrive, and a question is only
+     * asked once per run.
      */
-    private void fetchMissingRecords() throws IOException {
-        // logger.debug("Records includes:");
-        // records.forEach(r -> logger.debug("{}", r));
-        for (PtrRecord ptr : records.stream().filter(r -> r instanceof PtrRecord).map(r -> (PtrRecord) r).collect(Collectors.toList())) {
-            fetchMissingSrvRecordsFor(ptr);
-            fetchMissingTxtRecordsFor(ptr);
+    private void fetchMissingRecords(Set<Record> received) throws IOException {
+        for (Record record : received) {
+            if (record instanceof SrvRecord) srvNames.add(record.getName());
+            else if (record instanceof TxtRecord) txtNames.add(record.getName());
+            else if (record instanceof ARecord || record instanceof AaaaRecord) addressNames.add(record.getName());
         }
-        for (SrvRecord srv : records.stream().filter(r -> r instanceof SrvRecord).map(r -> (SrvRecord) r).collect(Collectors.toList())) {
-            fetchMissingAddressRecordsFor(srv);
-        }
-    }
-
-    private void fetchMissingSrvRecordsFor(PtrRecord ptr) throws IOException {
-        long numRecords = records.stream().filter(r -> r instanceof SrvRecord).filter(
-                r -> r.getName().equals(ptr.getPtrName())
-        ).count();
-        if (numRecords == 0) {
-            logger.debug("Response has no SRV records");
-            querySrvRecordFor(ptr);
+        List<Question> missing = new ArrayList<>();
+        for (Record record : received) {
+            if (record instanceof PtrRecord) {
+                DnsName instanceName = ((PtrRecord) record).getPtrName();
+                if (!srvNames.contains(instanceName)) {
+                    logger.debug("Response has no SRV records");
+                    addQuestion(missing, new Question(instanceName, Question.QType.SRV, Question.QClass.IN, true));
+                }
+                if (!txtNames.contains(instanceName)) {
+                    logger.debug("Response has no TXT records");
+                    addQuestion(missing, new Question(instanceName, Question.QType.TXT, Question.QClass.IN, true));
+                }
+            } else if (record instanceof SrvRecord) {
+                DnsName target = ((SrvRecord) record).getTarget();
+                if (!addressNames.contains(target)) {
+                    logger.debug("Response has no A or AAAA records");
+                    addQuestion(missing, new Question(target, Question.QType.A, Question.QClass.IN, true));
+                    addQuestion(missing, new Question(target, Question.QType.AAAA, Question.QClass.IN, true));
+                }
+            }
         }
-    }
-
-    private void fetchMissingTxtRecordsFor(PtrRecord ptr) throws IOException {
-        long numRecords = records.stream().filter(r -> r instanceof TxtRecord).filter(
-                r -> r.getName().equals(ptr.getPtrName())
-        ).count();
-        if (numRecords == 0) {
-            logger.debug("Response has no TXT records");
-            queryTxtRecordFor(ptr);
+        if (!missing.isEmpty()) {
+            ask(missing);
         }
     }
 
-    private void fetchMissingAddressRecordsFor(SrvRecord srv) throws IOException {
-        long numRecords = records.stream().filter(r -> r instanceof ARecord || r instanceof AaaaRecord).filter(
-                r -> r.getName().equals(srv.getTarget())
-        ).count();
-        if (numRecords == 0) {
-            logger.debug("Response has no A or AAAA records");
-            queryAddressesFor(srv);
+    private void addQuestion(List<Question> batch, Question question) {
+        if (questions.add(question)) {
+            batch.add(question);
         }
     }
 
-    private void querySrvRecordFor(PtrRecord ptr) throws IOException {
-        Question question = new Question(ptr.getPtrName(), Question.QType.SRV, Question.QClass.IN);
-        ask(question);
-    }
-
-    private void queryTxtRecordFor(PtrRecord ptr) throws IOException {
-        Question question = new Question(ptr.getPtrName(), Question.QType.TXT, Question.QClass.IN);
-        ask(question);
-    }
-
-    private void queryAddressesFor(SrvRecord srv) throws IOException {
-        Question question = new Question(srv.getTarget(), Question.QType.A, Question.QClass.IN);
-        ask(question);
-        question = new Question(srv.getTarget(), Question.QType.AAAA, Question.QClass.IN);
-        ask(question);
-    }
-
     void buildInstancesFromRecords() {
         if (instances == null) return;
         records.stream().filter(r -> r instanceof PtrRecord && initialQuestion.answeredBy(r))
@@ -0,0 +1,104 @@
+package ch.unitelabs.mdns.sd;
+
+import ch.unitelabs.mdns.dns.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Packs outgoing queries into as few compressed packets as fit the link MTU.
+ * <p>
+ * Questions come first, followed by the known answers the querier already holds (RFC 6762 section 7.1). Known
+ * answers that don't fit spill into further packets, and every packet but the last has the TC bit set so that
+ * responders wait for the rest of the list before answering (section 7.2). Buffers are only borrowed while
+ * packing, so a short-lived query's packer costs no allocation. Not thread-safe.
+ */
+final class QueryPacker {
+    private static final int TRUNCATED_FLAG = 0x0200;
+
+    private ByteBuffer packet; // borrowed from the pool for the duration of a pack call
+    private ByteBuffer scratch;
+    private final NameCompressor compressor = new NameCompressor();
+    private final List<byte[]> packets = new ArrayList<>();
+    private int maxSize;
+    private int numQuestions;
+    private int numAnswers;
+
+    /**
+     * @param questions    questions to ask
+     * @param knownAnswers records already held, with their remaining TTL
+     * @param maxSize      largest UDP payload to build, in bytes
+     * @return the encoded packets
+     */
+    byte[][] pack(List<Question> questions, List<? extends Record> knownAnswers, int maxSize) {
+        this.maxSize = maxSize;
+        packets.clear();
+        packet = BufferPool.HEAP.acquire();
+        scratch = BufferPool.HEAP.acquire();
+        try {
+            packAll(questions, knownAnswers);
+        } finally {
+            BufferPool.HEAP.release(packet);
+            BufferPool.HEAP.release(scratch);
+            packet = null;
+            scratch = null;
+        }
+        return packets.toArray(new byte[0][]);
+    }
+
+    private void packAll(List<Question> questions, List<? extends Record> knownAnswers) {
+        start();
+        for (Question question : questions) {
+            // Questions that don't fit make a new query of their own, no known answers are cut off yet
+            if (!makeRoom(question.getWireLength(), false)) continue;
+            question.writeTo(packet, compressor);
+            numQuestions++;
+        }
+        for (Record knownAnswer : knownAnswers) {
+            if (!knownAnswer.canEncode()) continue;
+            scratch.clear();
+            knownAnswer.writeTo(scratch);
+            if (!makeRoom(scratch.position(), true)) continue;
+            knownAnswer.writeTo(packet, compressor);
+            numAnswers++;
+        }
+        if (numQuestions + numAnswers > 0) finish(false);
+    }
+
+    /**
+     * Start a new packet if the current one can't take length more bytes.
+     *
+     * @return false if the item can't be sent at all
+     */
+    private boolean makeRoom(int length, boolean truncated) {
+        if (packet.remaining() >= length) return true;
+        if (numQuestions + numAnswers > 0) {
+            finish(truncated);
+            start();
+        }
+        if (packet.remaining() >= length) return true;
+        // A single item larger than the MTU still goes out, alone, as the sender fragments it
+        if (packet.capacity() - packet.position() < length) return false;
+        packet.limit(packet.capacity());
+        return true;
+    }
+
+    private void start() {
+        packet.clear();
+        packet.limit(Math.min(maxSize, packet.capacity()));
+        compressor.reset();
+        packet.putLong(0); // ID, flags (TC filled in once known), QDCOUNT and ANCOUNT filled in once known
+        packet.putInt(0); // NSCOUNT, ARCOUNT
+        numQuestions = 0;
+        numAnswers = 0;
+    }
+
+    private void finish(boolean truncated) {
+        packet.putShort(2, (short) (truncated ? TRUNCATED_FLAG : 0));
+        packet.putShort(4, (short) numQuestions);
+        packet.putShort(6, (short) numAnswers);
+        packets.add(Arrays.copyOf(packet.array(), packet.position()));
+    }
+}
@@ -0,0 +1,178 @@
+package ch.unitelabs.mdns.sd;
+
+import ch.unitelabs.mdns.dns.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Packs answers into as few compressed response packets as fit the link MTU.
+ * <p>
+ * Answers come first and decide the packet count; each packet then carries as many of its answers' additional
+ * records as still fit, since those are optional. A record is only added when its uncompressed length fits, so
+ * writing never overflows. Probe queries are packed the same way. Not thread-safe, each sending thread owns one.
+ */
+final class ResponsePacker {
+    private static final int RESPONSE_FLAGS = 0x8400; // QR and AA
+    private static final long LEGACY_UNICAST_TTL = 10; // [s], RFC 6762 section 6.7
+    private static final int QUESTION_FIXED_LENGTH = 4; // QTYPE and QCLASS
+
+    private final ByteBuffer packet = ByteBuffer.allocate(Message.MAX_LENGTH);
+    private final NameCompressor compressor = new NameCompressor();
+    private final List<AnswerIndex.Answer> additionals = new ArrayList<>();
+
+    /**
+     * @param index       index to look additional records up in
+     * @param answers     answers to send, in order
+     * @param maxSize     largest UDP payload to build, in bytes
+     * @param legacyQuery query to echo for a legacy unicast resolver, or null for a regular mDNS response
+     * @return the encoded packets
+     */
+    byte[][] pack(AnswerIndex index, List<AnswerIndex.Answer> answers, int maxSize, Request legacyQuery) {
+        return pack(index, answers, maxSize, legacyQuery, true);
+    }
+
+    /**
+     * @param withAdditionals false to send the answers alone, e.g. for announcements that already list every record
+     */
+    byte[][] pack(AnswerIndex index, List<AnswerIndex.Answer> answers, int maxSize, Request legacyQuery,
+                  boolean withAdditionals) {
+        List<byte[]> packets = new ArrayList<>();
+        int next = 0;
+        while (next < answers.size()) {
+            packet.clear();
+            packet.limit(Math.min(maxSize, packet.capacity()));
+            compressor.reset();
+            writeHeader(legacyQuery);
+
+            int first = next;
+            while (next < answers.size()) {
+                AnswerIndex.Answer answer = answers.get(next);
+                // A record larger than the MTU still goes out, alone, as the sender fragments it
+                if (packet.remaining() < answer.length && next > first) break;
+                if (packet.remaining() < answer.length) packet.limit(packet.capacity());
+                write(answer.record, legacyQuery != null);
+                next++;
+            }
+
+            additionals.clear();
+            for (int i = first; withAdditionals && i < next; i++) {
+                index.addAdditionals(answers.get(i), additionals);
+            }
+            int numAdditionals = 0;
+            for (AnswerIndex.Answer additional : additionals) {
+                if (packet.remaining() < additional.length) continue;
+                if (contains(answers, first, next, additional)) continue;
+                write(additional.record, legacyQuery != null);
+                numAdditionals++;
+            }
+
+            packet.putShort(6, (short) (next - first));
+            packet.putShort(10, (short) numAdditionals);
+            packets.add(Arrays.copyOf(packet.array(), packet.position()));
+        }
+        return packets.toArray(new byte[0][]);
+    }
+
+    /**
+     * Pack probe queries (RFC 6762 section 8.1): one ANY question per name, with the records proposed for that
+     * name in the authority section so simultaneous probes can be told apart.
+     *
+     * @param names           names being probed
+     * @param proposed        records proposed for each name, in the same order
+     * @param maxSize         largest UDP payload to build, in bytes
+     * @param unicastResponse whether to set the QU bit, as the first probe should
+     * @return the encoded packets
+     */
+    byte[][] packProbes(List<DnsName> names, List<List<AnswerIndex.Answer>> proposed, int maxSize,
+                        boolean unicastResponse) {
+        List<byte[]> packets = new ArrayList<>();
+        int next = 0;
+        while (next < names.size()) {
+            packet.clear();
+            packet.limit(Math.min(maxSize, packet.capacity()));
+            compressor.reset();
+            packet.putLong(0); // ID, flags, QDCOUNT filled in once known, ANCOUNT
+            packet.putInt(0); // NSCOUNT filled in once known, ARCOUNT
+
+            // Questions and authority records are separate sections, so pick the names first by their upper bound
+            int first = next;
+            int reserved = 0;
+            while (next < names.size()) {
+                int length = names.get(next).getWireLength() + QUESTION_FIXED_LENGTH;
+                for (AnswerIndex.Answer answer : proposed.get(next)) {
+                    length += answer.length;
+                }
+                if (reserved + length > packet.remaining() && next > first) break;
+                reserved += length;
+                next++;
+            }
+            if (reserved > packet.remaining()) packet.limit(packet.capacity());
+
+            int numAuthorities = 0;
+            for (int i = first; i < next; i++) {
+                compressor.writeName(packet, names.get(i));
+                packet.putShort((short) AnswerIndex.QTYPE_ANY);
+                packet.putShort((short) (Record.Class.IN.asUnsignedShort() | (unicastResponse ? Question.UNICAST_RESPONSE_BIT : 0)));
+            }
+            for (int i = first; i < next; i++) {
+                for (AnswerIndex.Answer answer : proposed.get(i)) {
+                    answer.record.writeTo(packet, compressor);
+                    numAuthorities++;
+                }
+            }
+
+            packet.putShort(4, (short) (next - first));
+            packet.putShort(8, (short) numAuthorities);
+            packets.add(Arrays.copyOf(packet.array(), packet.position()));
+        }
+        return packets.toArray(new byte[0][]);
+    }
+
+    private void writeHeader(Request legacyQuery) {
+        packet.putShort((short) (legacyQuery != null ? legacyQuery.getId() : 0));
+        packet.putShort((short) RESPONSE_FLAGS);
+        packet.putShort((short) (legacyQuery != null ? legacyQuery.getQuestionCount() : 0));
+        packet.putShort((short) 0); // ANCOUNT, filled in once known
+        packet.putShort((short) 0);
+        packet.putShort((short) 0); // ARCOUNT, filled in once known
+        if (legacyQuery != null) {
+            // Legacy resolvers match the reply on the echoed ID and question section
+            ByteBuffer questions = legacyQuery.getQuestionSection();
+            if (questions.remaining() <= packet.remaining()) {
+                packet.put(questions);
+            } else {
+                packet.putShort(4, (short) 0);
+            }
+        }
+    }
+
+    private void write(Record record, boolean legacy) {
+        int start = packet.position();
+        record.writeTo(packet, compressor);
+        if (legacy) {
+            // No cache-flush bit and short TTLs for resolvers that don't speak mDNS (RFC 6762 section 6.7)
+            int classOffset = skipName(start) + 2;
+            packet.putShort(classOffset, (short) Record.Class.IN.asUnsignedShort());
+            packet.putInt(classOffset + 2, (int) Math.min(record.getTTL(), LEGACY_UNICAST_TTL));
+        }
+    }
+
+    private int skipName(int offset) {
+        while (true) {
+            int length = packet.get(offset) & 0xFF;
+            if (length == 0) return offset + 1;
+            if ((length & 0xC0) == 0xC0) return offset + 2;
+            offset += 1 + length;
+        }
+    }
+
+    private static boolean contains(List<AnswerIndex.Answer> answers, int from, int to, AnswerIndex.Answer answer) {
+        for (int i = from; i < to; i++) {
+            if (answers.get(i) == answer) return true;
+        }
+        return false;
+    }
+}
@@ -19,42 +19,66 @@
 
 package ch.unitelabs.mdns.sd;
 
-import java.util.Arrays;
-import java.util.Collections;
+import ch.unitelabs.mdns.dns.DnsName;
+
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class Service {
-    private final String name;
-    private final List<String> labels;
+    private final DnsName name;
 
-    private static final Pattern SERVICE_PATTERN = Pattern.compile("^((_[a-zA-Z0-9-]+\\.)?_(tcp|udp))\\.?|$");
+    private static final String TCP_LABEL = "_tcp";
+    private static final String UDP_LABEL = "_udp";
 
+    /**
+     * Extract the service type from the start of a name, e.g. "_http._tcp" from "_http._tcp.local.".
+     *
+     * @param name a service type, optionally followed by a domain
+     * @return the Service
+     */
     public static Service fromName(String name) {
-        Matcher matcher = SERVICE_PATTERN.matcher(name);
-        if (matcher.find()) {
-            return new Service(matcher.group(1));
-        } else {
+        DnsName dnsName;
+        try {
+            dnsName = DnsName.of(name);
+        } catch (IllegalArgumentException e) {
             throw new IllegalArgumentException("Name does not match service syntax");
         }
+        List<String> labels = dnsName.getLabels();
+        if (labels.size() > 0 && isProtocol(labels.get(0))) {
+            return new Service(dnsName, 1);
+        }
+        if (labels.size() > 1 && isServiceType(labels.get(0)) && isProtocol(labels.get(1))) {
+            return new Service(dnsName, 2);
+        }
+        throw new IllegalArgumentException("Name does not match service syntax");
+    }
+
+    private static boolean isProtocol(String label) {
+        return label.equalsIgnoreCase(TCP_LABEL) || label.equalsIgnoreCase(UDP_LABEL);
     }
 
-    private Service(String name) {
-        if (name == null || name.isEmpty()) {
-            throw new IllegalArgumentException("A Service's name can't be null or empty");
+    private static boolean isServiceType(String label) {
+        if (label.length() < 2 || label.charAt(0) != '_') {
+            return false;
         }
+        for (int i = 1; i < label.length(); i++) {
+            char c = label.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '-')) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-        this.name = name;
-        labels = Arrays.asList(name.split("\\."));
+    private Service(DnsName name, int labelCount) {
+        this.name = name.prefix(labelCount);
     }
 
-    public String getName() {
+    public DnsName getName() {
         return name;
     }
 
     public List<String> getLabels() {
-        return Collections.unmodifiableList(labels);
+        return name.getLabels();
     }
 
     @Override
@@ -81,7 +105,7 @@ public class Service {
     public String toString() {
         return "Service{" +
                 "name='" + name + '\'' +
-                ", labels=" + labels +
+                ", labels=" + getLabels() +
                 '}';
     }
 }
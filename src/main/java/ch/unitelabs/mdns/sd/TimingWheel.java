@@ -0,0 +1,99 @@
+package ch.unitelabs.mdns.sd;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timing wheel: items are filed in the slot of the tick their deadline falls in, so each tick only visits
+ * one slot, whatever the number of items scheduled.
+ * <p>
+ * Deadlines further away than one revolution share the slot with nearer ones and are passed over until their
+ * round comes. Any thread may schedule; scheduled items are queued and filed by the single thread that advances
+ * the wheel, which owns the slots.
+ *
+ * @param <T> type of the scheduled items
+ */
+final class TimingWheel<T> {
+    private final Node<T>[] slots;
+    private final int mask;
+    private final long tickMillis;
+    private final long origin;
+    private long tick; // next tick to process, only used by the advancing thread
+    private final ConcurrentLinkedQueue<Node<T>> scheduled = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param slots      number of slots, rounded up to a power of two; one revolution lasts slots ticks
+     * @param tickMillis resolution of the wheel [ms]
+     * @param now        current time [ms]
+     */
+    @SuppressWarnings("unchecked")
+    TimingWheel(int slots, long tickMillis, long now) {
+        int size = Integer.highestOneBit(Math.max(2, slots - 1)) << 1;
+        this.slots = (Node<T>[]) new Node<?>[size];
+        this.mask = size - 1;
+        this.tickMillis = tickMillis;
+        this.origin = now;
+    }
+
+    long getTickMillis() {
+        return tickMillis;
+    }
+
+    /**
+     * Schedule an item; it is handed back by the first {@link #advance(long, Consumer)} past its deadline, within
+     * one tick. Safe to call from any thread.
+     *
+     * @param deadline time the item is due [ms]
+     */
+    void schedule(T item, long deadline) {
+        scheduled.add(new Node<>(item, Math.max(0, (deadline - origin + tickMillis - 1) / tickMillis)));
+    }
+
+    /**
+     * Process every tick up to now. Only one thread may advance the wheel.
+     *
+     * @param now     current time [ms]
+     * @param expired receives the items whose deadline has passed
+     */
+    void advance(long now, Consumer<T> expired) {
+        long last = (now - origin) / tickMillis;
+        while (tick <= last) {
+            file();
+            int index = (int) tick & mask;
+            Node<T> node = slots[index];
+            slots[index] = null;
+            while (node != null) {
+                Node<T> next = node.next;
+                if (node.deadlineTick <= tick) {
+                    expired.accept(node.item);
+                } else {
+                    // Due in a later revolution
+                    node.next = slots[index];
+                    slots[index] = node;
+                }
+                node = next;
+            }
+            tick++;
+        }
+    }
+
+    private void file() {
+        Node<T> node;
+        while ((node = scheduled.poll()) != null) {
+            int index = (int) Math.max(node.deadlineTick, tick) & mask;
+            node.next = slots[index];
+            slots[index] = node;
+        }
+    }
+
+    private static final class Node<T> {
+        final T item;
+        final long deadlineTick;
+        Node<T> next;
+
+        Node(T item, long deadlineTick) {
+            this.item = item;
+            this.deadlineTick = deadlineTick;
+        }
+    }
+}